@@ -0,0 +1,33 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks with GC profiler, so results show ops/s together with bytes allocated per operation
+ * (gc.alloc.rate.norm).
+ *
+ * <pre>
+ * mvn install                      (extractor)
+ * cd benchmarks &amp;&amp; mvn package
+ * java -jar target/benchmarks.jar [JMH options, e.g. ParseRecordBenchmark -p bodySize=16384]
+ * </pre>
+ *
+ * @author sgacka
+ */
+public class BenchmarkRunner {
+
+    /**
+     * @param args
+     *            JMH command line options
+     * @throws java.lang.Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,75 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import com.soprasteria.notificationextractor.Attachment;
+import com.soprasteria.notificationextractor.Configuration;
+import com.soprasteria.notificationextractor.Database;
+import com.soprasteria.notificationextractor.MemoryBudget;
+import com.soprasteria.notificationextractor.Tenant;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Shared setup of benchmarks - configuration without database connection and temporary output directory.
+ *
+ * @author sgacka
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Sets configuration used by benchmarks. Read-only mode avoids fsync of written files.
+     */
+    static void configure() {
+        Configuration.customer_tool = Payloads.CUSTOMER_TOOL;
+        Configuration.tenants.clear();
+        Configuration.tenants.add(new Tenant(Payloads.CUSTOMER_TOOL, null, Boolean.FALSE, Boolean.FALSE, 0));
+        Configuration.timeZoneCode = "UTC";
+        Configuration.isReadOnly = Boolean.TRUE;
+        Attachment.configure(Configuration.spoolMemoryLimit, Configuration.decompressThreads);
+        MemoryBudget.configure(Configuration.memoryBudget);
+    }
+
+    /**
+     * Gets database object that is never connected, enough for parsing.
+     *
+     * @return Database object
+     */
+    static Database database() {
+        return new Database("bench", "", "localhost", 1521, "BENCH", 1);
+    }
+
+    /**
+     * Creates temporary output directory.
+     *
+     * @return Directory
+     * @throws IOException
+     */
+    static File outputDirectory() throws IOException {
+        return Files.createTempDirectory("notificationextractor-bench").toFile();
+    }
+
+    /**
+     * Removes output directory with its content.
+     *
+     * @param dir
+     *            Directory
+     */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+
+        dir.delete();
+    }
+}
@@ -0,0 +1,153 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import com.soprasteria.notificationextractor.Configuration;
+import com.soprasteria.notificationextractor.Database;
+import com.soprasteria.notificationextractor.EventOut;
+import com.soprasteria.notificationextractor.EventOutRecord;
+import com.soprasteria.notificationextractor.Metrics;
+import com.soprasteria.notificationextractor.Pipeline;
+import java.io.File;
+import java.util.Calendar;
+import java.util.Properties;
+
+/**
+ * End-to-end throughput test - whole pipeline (eventout read, parse, attachments, write, delete) against the stand-in
+ * database filled by {@link LoadGenerator}. Reports records/s, MB/s of written files and p50/p99 record latency (time
+ * from reading record until its notification is saved, estimated from latency histogram).
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.soprasteria.notificationextractor.benchmarks.EndToEndBenchmark [name=value ...]
+ * </pre>
+ *
+ * Parameters (defaults in brackets): records [10000], foreign [0.5], attachments [0.3], perRecord [2], size [200000],
+ * compressed [0.7], lineItems [0.2], phase [0.5], body [2000], seed [1], pool [10], readOnly [false], url [in-memory H2].
+ *
+ * @author sgacka
+ */
+public class EndToEndBenchmark {
+
+    /**
+     * @param args
+     *            Parameters as name=value
+     * @throws java.lang.Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Properties parameters = new Properties();
+        for (String arg : args) {
+            int pos = arg.indexOf('=');
+
+            if (pos < 1) {
+                System.out.println("Parameter " + arg + " must be given as name=value");
+                System.exit(1);
+            }
+
+            parameters.setProperty(arg.substring(0, pos), arg.substring(pos + 1));
+        }
+
+        String url = parameters.getProperty("url", StandIn.URL);
+        int poolSize = Integer.parseInt(parameters.getProperty("pool", "10"));
+
+        BenchmarkSupport.configure();
+        Configuration.isReadOnly = Boolean.parseBoolean(parameters.getProperty("readOnly", "false"));
+        Configuration.start = Calendar.getInstance().getTime();
+        Configuration.db_url = url;
+        Configuration.db_user = StandIn.USER;
+        Configuration.db_password = "";
+        Configuration.db_pool_size = poolSize;
+        Configuration.dbMaxConcurrency = poolSize;
+        Configuration.attachmentThreads = poolSize;
+
+        LoadGenerator generator = new LoadGenerator(Integer.parseInt(parameters.getProperty("records", "10000")),
+                Double.parseDouble(parameters.getProperty("foreign", "0.5")),
+                Double.parseDouble(parameters.getProperty("attachments", "0.3")),
+                Integer.parseInt(parameters.getProperty("perRecord", "2")), Integer.parseInt(parameters.getProperty("size", "200000")),
+                Double.parseDouble(parameters.getProperty("compressed", "0.7")),
+                Double.parseDouble(parameters.getProperty("lineItems", "0.2")),
+                Double.parseDouble(parameters.getProperty("phase", "0.5")), Integer.parseInt(parameters.getProperty("body", "2000")),
+                Long.parseLong(parameters.getProperty("seed", "1")));
+
+        File dir = BenchmarkSupport.outputDirectory();
+        StandIn standIn = new StandIn(url);
+
+        try {
+            long start = System.nanoTime();
+            generator.generate(standIn, dir);
+            System.out.println("Generated " + standIn.countEvents() + " eventout records (" + generator.getNotifications()
+                    + " notifications, " + generator.getAttachments() + " attachments, "
+                    + format(generator.getAttachmentBytes() / 1e6) + " MB) in " + format((System.nanoTime() - start) / 1e9) + " s");
+
+            Database db = new Database(StandIn.USER, "", "localhost", 0, "", poolSize);
+            db.connect();
+
+            Pipeline pipeline = new Pipeline(db);
+            pipeline.start();
+
+            EventOut eventOut = new EventOut(db, Configuration.fetchSize, null);
+
+            try {
+                start = System.nanoTime();
+
+                eventOut.getEventOut();
+
+                EventOutRecord record;
+                while ((record = eventOut.getNextEventOutRecord()) != null) {
+                    pipeline.submit(record);
+                }
+
+                // records read their evfields through the cursor, so it is closed after all of them are processed
+                pipeline.awaitIdle();
+                eventOut.close();
+                db.flushRemovals();
+            } finally {
+                pipeline.stop();
+                db.disconnect();
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double megabytes = size(dir) / 1e6;
+            Metrics.Histogram latency = Metrics.histogram(Metrics.RECORD_LATENCY);
+
+            System.out.println("Records read:      " + eventOut.getRecordsCount() + " in " + format(seconds) + " s");
+            System.out.println("Notifications:     " + latency.getCount() + " saved, " + standIn.countEvents()
+                    + " records left in eventout");
+            System.out.println("Throughput:        " + format(eventOut.getRecordsCount() / seconds) + " records/s, "
+                    + format(megabytes / seconds) + " MB/s (" + format(megabytes) + " MB written)");
+            System.out.println("Record latency:    p50 " + format(latency.getQuantile(0.5) * 1000) + " ms, p99 "
+                    + format(latency.getQuantile(0.99) * 1000) + " ms");
+        } finally {
+            standIn.close();
+            BenchmarkSupport.delete(dir);
+        }
+    }
+
+    /**
+     * Gets size of all files in directory.
+     *
+     * @param dir
+     *            Directory
+     * @return Size in bytes
+     */
+    private static long size(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? size(file) : file.length();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Formats number with two decimal places.
+     *
+     * @param value
+     *            Number
+     * @return Formatted number
+     */
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+}
@@ -0,0 +1,160 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Generator of synthetic eventout load in the stand-in database: page events for the benchmarked interface and for other
+ * interfaces (noise), segmented attachments (plain and zlib compressed) and line items with attachments stored under their
+ * phase.
+ *
+ * @author sgacka
+ */
+public final class LoadGenerator {
+
+    /**
+     * Rows are inserted in batches of this many events
+     */
+    private static final int FLUSH_EVENTS = 200;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final int records;
+    private final double foreignShare;
+    private final double attachmentShare;
+    private final int attachmentsPerRecord;
+    private final int attachmentSize;
+    private final double compressedShare;
+    private final double lineItemShare;
+    private final double phaseShare;
+    private final int bodySize;
+    private final long seed;
+    private int notifications;
+    private int attachments;
+    private long attachmentBytes;
+
+    /**
+     * LoadGenerator constructor.
+     *
+     * @param records
+     *            Number of eventout records
+     * @param foreignShare
+     *            Share of records for other interfaces (0 - 1)
+     * @param attachmentShare
+     *            Share of notifications with attachments (0 - 1)
+     * @param attachmentsPerRecord
+     *            Number of attachments of notification with attachments
+     * @param attachmentSize
+     *            Attachment size in bytes (before compression)
+     * @param compressedShare
+     *            Share of compressed attachments (0 - 1)
+     * @param lineItemShare
+     *            Share of line item notifications (0 - 1)
+     * @param phaseShare
+     *            Share of line items with attachments stored under their phase (0 - 1)
+     * @param bodySize
+     *            Approximate size of notification body in characters
+     * @param seed
+     *            Seed for generated load
+     */
+    public LoadGenerator(int records, double foreignShare, double attachmentShare, int attachmentsPerRecord, int attachmentSize,
+            double compressedShare, double lineItemShare, double phaseShare, int bodySize, long seed) {
+        this.records = records;
+        this.foreignShare = foreignShare;
+        this.attachmentShare = attachmentShare;
+        this.attachmentsPerRecord = attachmentsPerRecord;
+        this.attachmentSize = attachmentSize;
+        this.compressedShare = compressedShare;
+        this.lineItemShare = lineItemShare;
+        this.phaseShare = phaseShare;
+        this.bodySize = bodySize;
+        this.seed = seed;
+    }
+
+    /**
+     * Generates all records. Every notification has its own second, its attachments are within the next 10 seconds (as
+     * searched by extractor with UTC time zone).
+     *
+     * @param standIn
+     *            Stand-in database
+     * @param directory
+     *            Output directory of notifications
+     * @throws Exception
+     */
+    public void generate(StandIn standIn, File directory) throws Exception {
+        Random random = new Random(seed);
+        LocalDateTime start = LocalDateTime.of(2015, 10, 12, 10, 0, 0);
+        String interfaceDirectory = directory.getPath() + File.separator + Payloads.CUSTOMER_TOOL;
+
+        for (int i = 0; i < records; i++) {
+            LocalDateTime time = start.plusSeconds(i * 20L);
+            boolean isForeign = random.nextDouble() < foreignShare;
+            boolean isLineItem = random.nextDouble() < lineItemShare;
+            boolean withAttachments = !isForeign && random.nextDouble() < attachmentShare;
+            String source = isLineItem ? "LINEITEM" : "INCIDENT";
+            String ticketNumber = (isLineItem ? "LI" : "IM") + (100000 + i);
+
+            String evFields = Payloads.evFieldsSavedIn(source, ticketNumber, withAttachments,
+                    isForeign ? "D:\\GSC_Processing\\OTHER\\out\\OTHER_TOOL" : interfaceDirectory, time.format(FILE_TIME), bodySize,
+                    seed + i);
+            standIn.addEvent(String.format("%012d", i + 1), Timestamp.valueOf(time), evFields);
+
+            if (!isForeign) {
+                notifications++;
+            }
+
+            if (isLineItem) {
+                standIn.addLineItem(ticketNumber, "PH" + (100000 + i));
+            }
+
+            if (withAttachments) {
+                // line item without own attachments gets attachments of its phase
+                String topic = isLineItem && random.nextDouble() < phaseShare ? "PH" + (100000 + i) : ticketNumber;
+
+                for (int k = 0; k < attachmentsPerRecord; k++) {
+                    byte[] data = Payloads.content(attachmentSize, seed + i * 31L + k);
+
+                    standIn.addAttachment(topic, Timestamp.valueOf(time.plusSeconds(1 + k % 9)), "U" + i + "_" + k,
+                            "document" + k + ".txt", data, random.nextDouble() < compressedShare);
+                    attachments++;
+                    attachmentBytes += data.length;
+                }
+            }
+
+            if ((i + 1) % FLUSH_EVENTS == 0) {
+                standIn.flush();
+            }
+        }
+
+        standIn.flush();
+    }
+
+    /**
+     * Gets number of generated notifications for benchmarked interface.
+     *
+     * @return Number of notifications
+     */
+    public int getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * Gets number of generated attachments.
+     *
+     * @return Number of attachments
+     */
+    public int getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * Gets size of generated attachments before compression.
+     *
+     * @return Size in bytes
+     */
+    public long getAttachmentBytes() {
+        return attachmentBytes;
+    }
+}
@@ -0,0 +1,65 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import com.soprasteria.notificationextractor.Database;
+import com.soprasteria.notificationextractor.EventOutRecord;
+import java.util.concurrent.TimeUnit;
+import javax.sql.rowset.serial.SerialClob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of evfields parsing ({@link EventOutRecord#parseRecord()}) for notifications of various sizes.
+ *
+ * @author sgacka
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseRecordBenchmark {
+
+    /**
+     * Approximate size of notification body in characters
+     */
+    @Param({ "1024", "16384", "262144" })
+    public int bodySize;
+
+    private Database database;
+    private SerialClob evFields;
+
+    /**
+     * Prepares evfields payload.
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.configure();
+
+        database = BenchmarkSupport.database();
+        evFields = new SerialClob(Payloads.evFields("INCIDENT", "IM12345", true, Payloads.CUSTOMER_TOOL, "20151012101010", bodySize, 42)
+                .toCharArray());
+    }
+
+    /**
+     * Parses evfields of single record.
+     *
+     * @return Parse result
+     * @throws Exception
+     */
+    @Benchmark
+    public Boolean parseRecord() throws Exception {
+        return new EventOutRecord(evFields, 0L, "1", database).parseRecord();
+    }
+}
@@ -0,0 +1,196 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Generator of realistic evfields and attachment segment payloads.
+ *
+ * @author sgacka
+ */
+public final class Payloads {
+
+    /**
+     * Interface name used in destination paths
+     */
+    public static final String CUSTOMER_TOOL = "CUSTOMER_TOOL";
+    /**
+     * Size of attachment segment data as stored by HPSC
+     */
+    public static final int SEGMENT_SIZE = 32000;
+
+    private static final String[] WORDS = { "ticket", "update", "assignment", "group", "priority", "status", "resolved",
+            "customer", "contact", "description", "service", "impact", "urgency", "category", "closure", "code" };
+
+    private Payloads() {
+    }
+
+    /**
+     * Gets evfields content with page notification for given interface.
+     *
+     * @param source
+     *            Ticket source, e.g. INCIDENT or LINEITEM
+     * @param ticketNumber
+     *            Ticket number
+     * @param withAttachments
+     *            TRUE if notification announces attachments
+     * @param customerTool
+     *            Interface name put into destination path
+     * @param time
+     *            Notification time in yyyyMMddHHmmss format
+     * @param bodySize
+     *            Approximate size of notification body in characters
+     * @param seed
+     *            Seed for generated text
+     * @return evfields content
+     */
+    public static String evFields(String source, String ticketNumber, boolean withAttachments, String customerTool, String time,
+            int bodySize, long seed) {
+        return evFieldsSavedIn(source, ticketNumber, withAttachments, "D:\\GSC_Processing\\CUSTOMER\\out\\" + customerTool,
+                time, bodySize, seed);
+    }
+
+    /**
+     * Gets evfields content with page notification saved in given directory.
+     *
+     * @param source
+     *            Ticket source, e.g. INCIDENT or LINEITEM
+     * @param ticketNumber
+     *            Ticket number
+     * @param withAttachments
+     *            TRUE if notification announces attachments
+     * @param directory
+     *            Destination directory, must contain interface name to match it
+     * @param time
+     *            Notification time in yyyyMMddHHmmss format
+     * @param bodySize
+     *            Approximate size of notification body in characters
+     * @param seed
+     *            Seed for generated text
+     * @return evfields content
+     */
+    public static String evFieldsSavedIn(String source, String ticketNumber, boolean withAttachments, String directory,
+            String time, int bodySize, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(bodySize + 512);
+
+        // history of earlier events kept in evfields
+        sb.append("telalert^old^").append(text(random, 200)).append("$end\n");
+
+        sb.append("telalert^");
+        for (int i = 0; i < 8; i++) {
+            sb.append("param").append(i).append('^');
+        }
+
+        sb.append(source).append("||").append(withAttachments ? "AA" : "NA").append("||").append(ticketNumber)
+                .append("||").append(directory).append("\\").append(time).append("_")
+                .append(ticketNumber).append(".temp||END\n");
+
+        while (sb.length() < bodySize + 400) {
+            sb.append(text(random, 60 + random.nextInt(60))).append('\n');
+        }
+
+        sb.append("$end^trailer");
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets random text made of words.
+     *
+     * @param random
+     *            Random generator
+     * @param length
+     *            Approximate text length
+     * @return Text
+     */
+    public static String text(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length + 16);
+
+        while (sb.length() < length) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets attachment content - text with some random bytes, compresses similar to real documents.
+     *
+     * @param size
+     *            Content size
+     * @param seed
+     *            Seed for generated content
+     * @return Attachment content
+     */
+    public static byte[] content(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        byte[] text = text(random, 4096).getBytes();
+
+        for (int i = 0; i < size; i++) {
+            data[i] = i % 64 == 63 ? (byte) random.nextInt(256) : text[i % text.length];
+        }
+
+        return data;
+    }
+
+    /**
+     * Compresses data with zlib.
+     *
+     * @param data
+     *            Data to compress
+     * @return Compressed data
+     */
+    public static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buf);
+            baos.write(buf, 0, count);
+        }
+        deflater.end();
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Splits data into segments with RC header, as stored in sysattachmem1.
+     *
+     * @param data
+     *            Attachment data (compressed or not)
+     * @param segmentSize
+     *            Size of data in one segment
+     * @param longHeader
+     *            TRUE for 10-byte header (0x2E indicator), FALSE for 9-byte header (0x2D indicator)
+     * @return Segments with headers
+     */
+    public static ArrayList<byte[]> segments(byte[] data, int segmentSize, boolean longHeader) {
+        ArrayList<byte[]> segments = new ArrayList<byte[]>();
+        int headerSize = longHeader ? 10 : 9;
+
+        for (int offset = 0; offset < data.length; offset += segmentSize) {
+            int length = Math.min(segmentSize, data.length - offset);
+            byte[] segment = new byte[headerSize + length];
+
+            segment[7] = longHeader ? (byte) 0x2E : (byte) 0x2D;
+            if (longHeader) {
+                segment[8] = (byte) (length >> 8);
+                segment[9] = (byte) length;
+            } else {
+                segment[8] = (byte) length;
+            }
+
+            System.arraycopy(data, offset, segment, headerSize, length);
+            segments.add(segment);
+        }
+
+        return segments;
+    }
+}
@@ -0,0 +1,93 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import com.soprasteria.notificationextractor.Attachment;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of saving attachment on disk, with zlib compressed and plain data.
+ *
+ * @author sgacka
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveAttachmentBenchmark {
+
+    /**
+     * TRUE if attachment is stored compressed
+     */
+    @Param({ "false", "true" })
+    public boolean compressed;
+
+    /**
+     * Attachment size in bytes (before compression)
+     */
+    @Param({ "65536", "1048576", "16777216" })
+    public int size;
+
+    private File dir;
+    private String destinationPath;
+    private ArrayList<byte[]> segments;
+
+    /**
+     * Prepares segments and output directory.
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.configure();
+
+        dir = BenchmarkSupport.outputDirectory();
+        destinationPath = dir.getPath() + File.separator + "20151012101010_IM12345.temp";
+
+        byte[] data = Payloads.content(size, 11);
+        segments = Payloads.segments(compressed ? Payloads.compress(data) : data, Payloads.SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Removes output directory.
+     */
+    @TearDown
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    /**
+     * Saves single attachment.
+     *
+     * @return Number of bytes written
+     * @throws Exception
+     */
+    @Benchmark
+    public long saveAttachment() throws Exception {
+        Attachment attachment = new Attachment("document.pdf", "UID", compressed);
+        attachment.open(destinationPath, "20151012101010_IM12345.temp", 1);
+
+        for (byte[] segment : segments) {
+            attachment.writeSegment(new ByteArrayInputStream(segment));
+        }
+
+        attachment.close();
+
+        return attachment.getSize();
+    }
+}
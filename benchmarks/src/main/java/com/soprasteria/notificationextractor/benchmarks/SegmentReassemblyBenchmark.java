@@ -0,0 +1,91 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import com.soprasteria.notificationextractor.Attachment;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of joining attachment segments with 9-byte (0x2D) and 10-byte (0x2E) RC headers into a file.
+ *
+ * @author sgacka
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentReassemblyBenchmark {
+
+    /**
+     * TRUE for 10-byte headers, FALSE for 9-byte headers
+     */
+    @Param({ "false", "true" })
+    public boolean longHeader;
+
+    /**
+     * Number of segments of the attachment
+     */
+    @Param({ "1", "16", "128" })
+    public int segmentCount;
+
+    private File dir;
+    private String destinationPath;
+    private ArrayList<byte[]> segments;
+
+    /**
+     * Prepares segments and output directory.
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.configure();
+
+        dir = BenchmarkSupport.outputDirectory();
+        destinationPath = dir.getPath() + File.separator + "20151012101010_IM12345.temp";
+        segments = Payloads.segments(Payloads.content(segmentCount * 2048, 7), 2048, longHeader);
+    }
+
+    /**
+     * Removes output directory.
+     */
+    @TearDown
+    public void tearDown() {
+        BenchmarkSupport.delete(dir);
+    }
+
+    /**
+     * Writes all segments of single attachment.
+     *
+     * @return Number of bytes written
+     * @throws Exception
+     */
+    @Benchmark
+    public long reassemble() throws Exception {
+        Attachment attachment = new Attachment("document.txt", "UID", Boolean.FALSE);
+        attachment.open(destinationPath, "20151012101010_IM12345.temp", 1);
+
+        for (byte[] segment : segments) {
+            attachment.writeSegment(new ByteArrayInputStream(segment));
+        }
+
+        attachment.close();
+
+        return attachment.getSize();
+    }
+}
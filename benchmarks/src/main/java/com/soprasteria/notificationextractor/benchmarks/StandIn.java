@@ -0,0 +1,180 @@
+package com.soprasteria.notificationextractor.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+/**
+ * Local stand-in for HPSC database - eventout, attachment and line item tables in H2 (Oracle compatibility mode) with the
+ * columns read by the extractor. Rows are inserted in JDBC batches.
+ *
+ * @author sgacka
+ */
+public final class StandIn {
+
+    /**
+     * In-memory database kept until JVM ends, shared by all connections of the extractor
+     */
+    public static final String URL = "jdbc:h2:mem:hpsc;MODE=Oracle;DB_CLOSE_DELAY=-1";
+    /**
+     * Database user
+     */
+    public static final String USER = "bench";
+
+    private static final String[] TABLES = {
+            "CREATE TABLE eventoutm1 (evsysseq VARCHAR(64) PRIMARY KEY, evtype VARCHAR(16), evtime TIMESTAMP, evfields CLOB)",
+            "CREATE TABLE sysattachmem1 (topic VARCHAR(64), sysmodtime TIMESTAMP, \"UID\" VARCHAR(64), segment INT, "
+                    + "filename VARCHAR(256), compressed VARCHAR(1), \"SIZE\" BIGINT, compressed_size BIGINT, \"DATA\" BLOB, "
+                    + "PRIMARY KEY (\"UID\", segment))",
+            "CREATE INDEX sysattachmem1_topic ON sysattachmem1 (topic, sysmodtime)",
+            "CREATE TABLE ocmlm1 (\"NUMBER\" VARCHAR(64) PRIMARY KEY, phase_num VARCHAR(64))" };
+
+    private final Connection connection;
+    private final PreparedStatement events;
+    private final PreparedStatement segments;
+    private final PreparedStatement lineItems;
+
+    /**
+     * StandIn constructor, creates tables.
+     *
+     * @param url
+     *            H2 JDBC URL
+     * @throws Exception
+     */
+    public StandIn(String url) throws Exception {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection(url, USER, "");
+        connection.setAutoCommit(false);
+
+        Statement statement = connection.createStatement();
+        try {
+            for (String table : TABLES) {
+                statement.execute(table);
+            }
+        } finally {
+            statement.close();
+        }
+
+        events = connection.prepareStatement("INSERT INTO eventoutm1 (evsysseq, evtype, evtime, evfields) VALUES (?, 'page', ?, ?)");
+        segments = connection.prepareStatement("INSERT INTO sysattachmem1 (topic, sysmodtime, \"UID\", segment, filename, "
+                + "compressed, \"SIZE\", compressed_size, \"DATA\") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        lineItems = connection.prepareStatement("INSERT INTO ocmlm1 (\"NUMBER\", phase_num) VALUES (?, ?)");
+    }
+
+    /**
+     * Adds page event to eventout.
+     *
+     * @param evSysSeq
+     *            Unique event key
+     * @param evTime
+     *            Event time
+     * @param evFields
+     *            evfields content
+     * @throws SQLException
+     */
+    public void addEvent(String evSysSeq, Timestamp evTime, String evFields) throws SQLException {
+        events.setString(1, evSysSeq);
+        events.setTimestamp(2, evTime);
+        events.setString(3, evFields);
+        events.addBatch();
+    }
+
+    /**
+     * Adds attachment split into segments with RC header.
+     *
+     * @param topic
+     *            Ticket (or phase) number
+     * @param time
+     *            Attachment time
+     * @param uid
+     *            Attachment UID
+     * @param fileName
+     *            Attachment name
+     * @param data
+     *            Attachment content
+     * @param compressed
+     *            TRUE if attachment is stored compressed with zlib
+     * @throws SQLException
+     */
+    public void addAttachment(String topic, Timestamp time, String uid, String fileName, byte[] data, boolean compressed)
+            throws SQLException {
+        byte[] stored = compressed ? Payloads.compress(data) : data;
+        ArrayList<byte[]> parts = Payloads.segments(stored, Payloads.SEGMENT_SIZE, false);
+
+        for (int segment = 0; segment < parts.size(); segment++) {
+            segments.setString(1, topic);
+            segments.setTimestamp(2, time);
+            segments.setString(3, uid);
+            segments.setInt(4, segment);
+            segments.setString(5, fileName);
+            segments.setString(6, compressed ? "t" : "f");
+            segments.setLong(7, data.length);
+            segments.setLong(8, stored.length);
+            segments.setBytes(9, parts.get(segment));
+            segments.addBatch();
+        }
+    }
+
+    /**
+     * Adds line item with its phase.
+     *
+     * @param number
+     *            Line item number
+     * @param phaseNumber
+     *            Phase number
+     * @throws SQLException
+     */
+    public void addLineItem(String number, String phaseNumber) throws SQLException {
+        lineItems.setString(1, number);
+        lineItems.setString(2, phaseNumber);
+        lineItems.addBatch();
+    }
+
+    /**
+     * Inserts all added rows and commits.
+     *
+     * @throws SQLException
+     */
+    public void flush() throws SQLException {
+        events.executeBatch();
+        segments.executeBatch();
+        lineItems.executeBatch();
+        connection.commit();
+    }
+
+    /**
+     * Counts rows left in eventout.
+     *
+     * @return Number of rows
+     * @throws SQLException
+     */
+    public int countEvents() throws SQLException {
+        Statement statement = connection.createStatement();
+
+        try {
+            ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM eventoutm1");
+            resultSet.next();
+
+            return resultSet.getInt(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Closes connection, in-memory database is kept.
+     *
+     * @throws SQLException
+     */
+    public void close() throws SQLException {
+        events.close();
+        segments.close();
+        lineItems.close();
+        connection.close();
+    }
+}
@@ -1,21 +1,73 @@
 package com.soprasteria.notificationextractor;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 /**
- * Class that represents attachment file.
+ * Class that represents attachment file. Attachment data is streamed segment by segment from database straight into the
+ * file, so only fixed size buffers are kept in memory. Compressed data is spooled (in memory or in temporary file) while
+ * segments are read and decompressed into the file when attachment is closed, so decompression can run on other thread
+ * than database reads. With attachment store all data is spooled and hashed, content already in store is not
+ * decompressed nor written again. Spooled data is kept in memory reserved from {@link MemoryBudget}, large attachments
+ * and those that don't fit in the budget are spilled to temporary file. Finished file is made visible with
+ * {@link OutputCommitter}.
  *
  * @author sgacka
  */
 public class Attachment {
 
+    /**
+     * Size of buffers used for reading segments and spooled data
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Maximum size of decompression output buffer, smaller buffer is used for smaller attachments
+     */
+    private static final int MAX_OUTPUT_SIZE = 1024 * 1024;
+    /**
+     * Data up to this size is spooled in memory, larger in temporary file (set with {@link #configure(int, int)})
+     */
+    private static volatile int maxSpoolMemory = 1024 * 1024;
+    /**
+     * Decompressors reused by all attachments, their number is limited by number of decompression workers
+     */
+    private static volatile ArrayBlockingQueue<Inflater> decompressors = new ArrayBlockingQueue<Inflater>(1);
+    private static final ThreadLocal<byte[]> outputs = new ThreadLocal<byte[]>();
+    private static final Metrics.Counter storeHits = Metrics.counter(Metrics.ATTACHMENT_STORE, "result", "hit");
+    private static final Metrics.Counter storeMisses = Metrics.counter(Metrics.ATTACHMENT_STORE, "result", "miss");
+
     private final String fileName;
     private String updatedFileName;
     private final String uid;
     private final Boolean isCompressed;
-    private byte[] bytes;
+    private File file;
+    private File output;
+    private File store;
+    private File object;
+    private MessageDigest digest;
+    private FileChannel channel;
+    private byte[] input;
+    private byte[] spool;
+    private int spoolLength;
+    private int reserved;
+    private File spoolFile;
+    private FileChannel spoolChannel;
+    private long originalSize;
+    private long size;
+    private long inflateNanos;
+    private Boolean isSaved;
+    private final CountDownLatch completion;
 
     /**
      * Attachment constructor.
@@ -31,11 +83,194 @@ public class Attachment {
         this.fileName = fileName.replace("?", "_");
         this.uid = uid;
         this.isCompressed = isCompressed;
+        this.isSaved = Boolean.FALSE;
+        this.completion = new CountDownLatch(1);
+    }
+
+    /**
+     * Sets limits shared by all attachments, called when decompression workers are started.
+     *
+     * @param spoolMemoryLimit
+     *            Maximum size (in KB) of attachment data kept in memory
+     * @param decompressThreads
+     *            Number of decompression workers
+     */
+    public static void configure(int spoolMemoryLimit, int decompressThreads) {
+        maxSpoolMemory = (int) Math.min(spoolMemoryLimit * 1024L, Integer.MAX_VALUE);
+
+        ArrayBlockingQueue<Inflater> previous = decompressors;
+        decompressors = new ArrayBlockingQueue<Inflater>(Math.max(1, decompressThreads));
+
+        Inflater decompressor;
+        while ((decompressor = previous.poll()) != null) {
+            decompressor.end();
+        }
+    }
+
+    /**
+     * Creates file on disk in specified path, segments are written into it with {@link #writeSegment(InputStream)}.
+     *
+     * @param path
+     *            Destination path for saving file
+     * @param file
+     *            Name of the file
+     * @param number
+     *            Number of the attachment
+     * @throws java.lang.Exception
+     */
+    public void open(String path, String file, int number) throws Exception {
+        open(path, file, number, 0, 0);
+    }
+
+    /**
+     * Creates file on disk in specified path, segments are written into it with {@link #writeSegment(InputStream)}.
+     *
+     * @param path
+     *            Destination path for saving file
+     * @param file
+     *            Name of the file
+     * @param number
+     *            Number of the attachment
+     * @param originalSize
+     *            Size of the attachment (SIZE column), 0 if unknown
+     * @param compressedSize
+     *            Size of compressed attachment (COMPRESSED_SIZE column), 0 if unknown
+     * @throws java.lang.Exception
+     */
+    public void open(String path, String file, int number, long originalSize, long compressedSize) throws Exception {
+        this.file = getFile(path, file, number);
+        output = OutputCommitter.getWriteFile(this.file);
+
+        if (Configuration.dedupAttachments) {
+            store = AttachmentStore.getStore(this.file.getParentFile());
+        }
+
+        MemoryBudget.reserve(BUFFER_SIZE);
+        input = new byte[BUFFER_SIZE];
+        size = 0;
+        this.originalSize = originalSize;
+
+        if (store == null) {
+            channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            // address is computed from data as read from database, so content is found in store before decompression
+            digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) (isCompressed ? 1 : 0));
+        }
+
+        // compressed data (or all data saved in store) is kept until attachment is closed
+        if (isSpooled()) {
+            long spoolSize = isCompressed ? compressedSize : originalSize;
+            int initialSize = (int) Math.max(BUFFER_SIZE, Math.min(spoolSize, maxSpoolMemory));
+            spoolLength = 0;
+
+            if (spoolSize > maxSpoolMemory) {
+                spill("size");
+            } else if (!MemoryBudget.tryReserve(initialSize)) {
+                spill("budget");
+            } else {
+                spool = new byte[initialSize];
+                reserved = initialSize;
+            }
+        }
+    }
+
+    /**
+     * Writes data of the next segment into the file. RC header at the beginning of the segment is skipped.
+     *
+     * @param segment
+     *            Segment data with header
+     * @return Number of bytes read from segment
+     * @throws java.lang.Exception
+     */
+    public long writeSegment(InputStream segment) throws Exception {
+        if (segment == null) {
+            return 0;
+        }
+
+        try {
+            // get the RC type indicator located at 8th byte
+            int headerRead = readFully(segment, input, 8);
+            long total = headerRead;
+            int headerSize = 0;
+
+            if (headerRead == 8) {
+                // which means the next 1 byte is the length indicator
+                if (input[7] == 0x2D) {
+                    headerSize = 9;
+                } // which means the next 2 bytes are the length indicator
+                else if (input[7] == 0x2E) {
+                    headerSize = 10;
+                }
+            }
+
+            if (headerSize > 0) {
+                total += readFully(segment, input, headerSize - headerRead);
+            } else {
+                // no header, bytes already read are data
+                write(input, headerRead);
+            }
+
+            int count;
+            while ((count = segment.read(input)) != -1) {
+                write(input, count);
+                total += count;
+            }
+
+            return total;
+        } finally {
+            segment.close();
+        }
     }
 
     /**
-     * Saves file on disk in specified path.
+     * Finishes writing of the file, decompresses spooled data if file is compressed.
      *
+     * @throws java.lang.Exception
+     */
+    public void close() throws Exception {
+        try {
+            FileChannel written = null;
+
+            if (store != null) {
+                saveInStore();
+            } else {
+                if (isCompressed) {
+                    inflate();
+                }
+
+                // channel is closed by committer
+                written = channel;
+                channel = null;
+            }
+
+            OutputCommitter.commit(written, output, file);
+            isSaved = Boolean.TRUE;
+        } finally {
+            release();
+            completion.countDown();
+        }
+    }
+
+    /**
+     * Stops writing of the file and removes incomplete file from disk.
+     */
+    public void abort() {
+        release();
+
+        if (output != null) {
+            output.delete();
+        }
+
+        completion.countDown();
+    }
+
+    /**
+     * Saves copy of already saved attachment in specified path.
+     *
+     * @param source
+     *            Saved attachment with the same content
      * @param path
      *            Destination path for saving file
      * @param file
@@ -44,12 +279,130 @@ public class Attachment {
      *            Number of the attachment
      * @throws java.lang.Exception
      */
-    public void saveAttachment(String path, String file, int number) throws Exception {
-        File dir = new File(path.replace(file, ""));
+    public void saveCopy(Attachment source, String path, String file, int number) throws Exception {
+        try {
+            this.file = getFile(path, file, number);
+            output = OutputCommitter.getWriteFile(this.file);
+            size = source.size;
+
+            if (source.object != null) {
+                AttachmentStore.link(source.object, output);
+                object = source.object;
+            } else {
+                Files.copy(source.file.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            OutputCommitter.commit(null, output, this.file);
+            isSaved = Boolean.TRUE;
+        } finally {
+            completion.countDown();
+        }
+    }
+
+    /**
+     * Saves attachment with content from store. Content is decompressed and added to store only if it is not there yet.
+     *
+     * @throws Exception
+     */
+    private void saveInStore() throws Exception {
+        File stored = AttachmentStore.getObject(store, digest.digest());
+
+        if (stored.isFile()) {
+            storeHits.increment();
+            size = stored.length();
+        } else {
+            storeMisses.increment();
+            File temp = AttachmentStore.createTempFile(store);
+
+            try {
+                channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+
+                if (isCompressed) {
+                    inflate();
+                } else {
+                    copySpool();
+                }
+
+                // channel is closed by committer
+                FileChannel written = channel;
+                channel = null;
+
+                AttachmentStore.add(written, temp, stored);
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+
+                // file is already moved to store unless saving failed
+                temp.delete();
+            }
+        }
+
+        AttachmentStore.link(stored, output);
+        object = stored;
+    }
+
+    /**
+     * Writes spooled (not compressed) data into the file.
+     *
+     * @throws IOException
+     */
+    private void copySpool() throws IOException {
+        if (spoolChannel == null) {
+            writeFully(channel, spool, spoolLength);
+            size = spoolLength;
+        } else {
+            long length = spoolChannel.size();
 
-        if (!dir.exists()) {
-            dir.mkdirs();
+            for (long position = 0; position < length;) {
+                position += spoolChannel.transferTo(position, length - position, channel);
+            }
+            size = length;
         }
+    }
+
+    /**
+     * Checks if data is spooled until attachment is closed.
+     *
+     * @return TRUE if data is compressed or saved in store
+     */
+    private Boolean isSpooled() {
+        return isCompressed || store != null;
+    }
+
+    /**
+     * Removes saved file from disk, used when attachment turns out not to be needed.
+     */
+    public void delete() {
+        if (isSaved) {
+            file.delete();
+            isSaved = Boolean.FALSE;
+        }
+    }
+
+    /**
+     * Waits until attachment is saved or aborted.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        completion.await();
+    }
+
+    /**
+     * Gets file for the attachment, creates destination directory if needed.
+     *
+     * @param path
+     *            Destination path for saving file
+     * @param file
+     *            Name of the file
+     * @param number
+     *            Number of the attachment
+     * @return Attachment file
+     */
+    private File getFile(String path, String file, int number) {
+        File dir = NotificationWriter.getDirectory(path.replace(file, ""));
 
         if (number < 10) {
             file = file.replace(".temp", "_0" + Integer.toString(number)) + "_";
@@ -59,33 +412,323 @@ public class Attachment {
 
         updatedFileName = file + fileName;
 
-        FileOutputStream fos = new FileOutputStream(dir.getPath() + File.separator + updatedFileName);
+        return new File(dir.getPath() + File.separator + updatedFileName);
+    }
 
-        // if file is compressed then use Inflater to decompress it
-        if (isCompressed) {
-            Inflater decompressor = new Inflater();
-            decompressor.setInput(bytes);
+    /**
+     * Writes segment data into the file, compressed data (or all data saved in store) is spooled.
+     *
+     * @param bytes
+     *            Buffer with data
+     * @param length
+     *            Number of bytes in buffer
+     * @throws Exception
+     */
+    private void write(byte[] bytes, int length) throws Exception {
+        if (length <= 0) {
+            return;
+        }
 
-            byte[] buf = new byte[1024];
-            while (!decompressor.finished()) {
-                int count = decompressor.inflate(buf);
-                fos.write(buf, 0, count);
-            }
+        if (digest != null) {
+            digest.update(bytes, 0, length);
+        }
+
+        if (!isSpooled()) {
+            writeFully(channel, bytes, length);
+            size += length;
+        } else if (spoolChannel != null) {
+            writeFully(spoolChannel, bytes, length);
+        } else if (spoolLength + length > maxSpoolMemory) {
+            // too big for memory - spooled data is moved to temporary file
+            spill("size");
+            writeFully(spoolChannel, bytes, length);
+        } else if (!growSpool(spoolLength + length)) {
+            spill("budget");
+            writeFully(spoolChannel, bytes, length);
         } else {
-            fos.write(bytes);
+            System.arraycopy(bytes, 0, spool, spoolLength, length);
+            spoolLength += length;
+        }
+    }
+
+    /**
+     * Makes sure spool buffer has required capacity, additional memory is reserved from budget.
+     *
+     * @param required
+     *            Required capacity
+     * @return TRUE if buffer is big enough, FALSE if memory is not available
+     */
+    private Boolean growSpool(int required) {
+        if (required <= spool.length) {
+            return Boolean.TRUE;
+        }
+
+        int size = Math.min(Math.max(spool.length * 2, required), maxSpoolMemory);
+
+        if (!MemoryBudget.tryReserve(size - spool.length)) {
+            return Boolean.FALSE;
+        }
+
+        reserved += size - spool.length;
+
+        byte[] grown = new byte[size];
+        System.arraycopy(spool, 0, grown, 0, spoolLength);
+        spool = grown;
+
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Moves spooled data to temporary file, memory reserved for it is returned to budget.
+     *
+     * @param reason
+     *            Reason for metrics - "size" or "budget"
+     * @throws IOException
+     */
+    private void spill(String reason) throws IOException {
+        Metrics.counter(Metrics.ATTACHMENT_SPILLS, "reason", reason).increment();
+
+        spoolFile = File.createTempFile("attachment", ".spool");
+        spoolChannel = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (spool != null) {
+            writeFully(spoolChannel, spool, spoolLength);
+            spool = null;
         }
 
-        fos.close();
+        MemoryBudget.release(reserved);
+        reserved = 0;
     }
 
     /**
-     * Sets byte content of the file.
+     * Decompresses spooled data into the file with pooled decompressor.
      *
+     * @throws Exception
+     */
+    private void inflate() throws Exception {
+        long start = System.nanoTime();
+        Inflater decompressor = decompressors.poll();
+        if (decompressor == null) {
+            decompressor = new Inflater();
+        }
+
+        byte[] output = getOutputBuffer();
+        // buffer is kept by the thread, but counted only during decompression
+        MemoryBudget.reserve(output.length);
+
+        try {
+
+            if (spoolChannel == null) {
+                inflate(decompressor, spool, spoolLength, output);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(input);
+                spoolChannel.position(0);
+
+                while (!decompressor.finished() && spoolChannel.read(buffer) != -1) {
+                    inflate(decompressor, input, buffer.position(), output);
+                    buffer.clear();
+                }
+            }
+
+            if (!decompressor.finished()) {
+                throw new DataFormatException("Compressed data of attachment " + fileName + " is incomplete");
+            }
+        } finally {
+            MemoryBudget.release(output.length);
+            decompressor.reset();
+
+            if (!decompressors.offer(decompressor)) {
+                decompressor.end();
+            }
+
+            inflateNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Decompresses chunk of data into the file.
+     *
+     * @param decompressor
+     *            Decompressor
      * @param bytes
-     *            Byte content
+     *            Compressed data
+     * @param length
+     *            Number of bytes
+     * @param output
+     *            Output buffer
+     * @throws Exception
+     */
+    private void inflate(Inflater decompressor, byte[] bytes, int length, byte[] output) throws Exception {
+        decompressor.setInput(bytes, 0, length);
+
+        while (!decompressor.finished() && !decompressor.needsInput()) {
+            int count = decompressor.inflate(output);
+
+            if (count == 0 && decompressor.needsDictionary()) {
+                throw new DataFormatException("Compressed data of attachment " + fileName + " requires dictionary");
+            }
+
+            writeFully(channel, output, count);
+            size += count;
+        }
+    }
+
+    /**
+     * Gets decompression output buffer of the current thread, sized from attachment size.
+     *
+     * @return Output buffer
+     */
+    private byte[] getOutputBuffer() {
+        int required = (int) Math.max(BUFFER_SIZE, Math.min(originalSize, MAX_OUTPUT_SIZE));
+        byte[] output = outputs.get();
+
+        if (output == null || output.length < required) {
+            output = new byte[required];
+            outputs.set(output);
+        }
+
+        return output;
+    }
+
+    /**
+     * Writes buffer content into the file channel.
+     *
+     * @param target
+     *            File channel
+     * @param bytes
+     *            Buffer with data
+     * @param length
+     *            Number of bytes in buffer
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel target, byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Reads given number of bytes from stream unless stream ends earlier.
+     *
+     * @param stream
+     *            Input stream
+     * @param bytes
+     *            Destination buffer
+     * @param length
+     *            Number of bytes to read
+     * @return Number of bytes read
+     * @throws IOException
+     */
+    private int readFully(InputStream stream, byte[] bytes, int length) throws IOException {
+        int total = 0;
+
+        while (total < length) {
+            int count = stream.read(bytes, total, length - total);
+
+            if (count == -1) {
+                break;
+            }
+
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Releases file channel, spooled data and buffers.
+     */
+    private void release() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more can be done with this file
+            }
+
+            channel = null;
+        }
+
+        if (spoolChannel != null) {
+            try {
+                spoolChannel.close();
+            } catch (IOException e) {
+                // temporary file is removed anyway
+            }
+
+            spoolChannel = null;
+        }
+
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+
+        if (input != null) {
+            MemoryBudget.release(input.length);
+            input = null;
+        }
+
+        spool = null;
+
+        MemoryBudget.release(reserved);
+        reserved = 0;
+    }
+
+    /**
+     * Gets original attachment name.
+     *
+     * @return Attachment name
+     */
+    public String getName() {
+        return fileName;
+    }
+
+    /**
+     * Gets attachment UID.
+     *
+     * @return UID from DB
+     */
+    public String getUid() {
+        return uid;
+    }
+
+    /**
+     * Checks if attachment is compressed.
+     *
+     * @return TRUE if file is compressed with zlib
+     */
+    public Boolean isCompressed() {
+        return isCompressed;
+    }
+
+    /**
+     * Checks if attachment has been completely saved on disk.
+     *
+     * @return TRUE if attachment is saved
+     */
+    public Boolean isSaved() {
+        return isSaved;
+    }
+
+    /**
+     * Gets number of bytes written on disk.
+     *
+     * @return Attachment size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets time spent on decompression (with writing decompressed data).
+     *
+     * @return Time in nanoseconds
      */
-    public void setBytes(byte[] bytes) {
-        this.bytes = bytes;
+    public long getInflateNanos() {
+        return inflateNanos;
     }
 
     /**
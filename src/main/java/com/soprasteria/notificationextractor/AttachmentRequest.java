@@ -0,0 +1,230 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Class that represents attachments lookup for single notification - attachments of the topic (ticket) saved in given
+ * time window.
+ *
+ * @author sgacka
+ */
+public class AttachmentRequest {
+
+    private final String source;
+    private final String topic;
+    private final long leftBoundary;
+    private final long rightBoundary;
+    private final String destinationPath;
+    private final String fileName;
+    private final Tenant tenant;
+    private final ArrayList<Attachment> attachments;
+    private AttachmentRequest primary;
+
+    /**
+     * AttachmentRequest constructor.
+     *
+     * @param source
+     *            Ticket source of the notification
+     * @param topic
+     *            Ticket number (attachment topic)
+     * @param boundaries
+     *            Date boundaries
+     * @param destinationPath
+     *            Destination path of the notification
+     * @param fileName
+     *            File name of the notification
+     * @param tenant
+     *            Customer tool of the notification
+     */
+    public AttachmentRequest(String source, String topic, long[] boundaries, String destinationPath, String fileName,
+            Tenant tenant) {
+        this.source = source;
+        this.topic = topic;
+        this.leftBoundary = boundaries[0];
+        this.rightBoundary = boundaries[1];
+        this.destinationPath = destinationPath;
+        this.fileName = fileName;
+        this.tenant = tenant;
+        this.attachments = new ArrayList<Attachment>();
+    }
+
+    /**
+     * Creates request for attachments of other topic saved in the same time window for the same notification.
+     *
+     * @param topic
+     *            Ticket number (attachment topic)
+     * @return Attachment request
+     */
+    public AttachmentRequest forTopic(String topic) {
+        return new AttachmentRequest(source, topic, getBoundaries(), destinationPath, fileName, tenant);
+    }
+
+    /**
+     * Creates request for attachments of other topic saved in the same time window for the same notification, used only
+     * when this request finds no attachments.
+     *
+     * @param topic
+     *            Ticket number (attachment topic)
+     * @return Attachment request
+     */
+    public AttachmentRequest fallback(String topic) {
+        AttachmentRequest request = forTopic(topic);
+        request.primary = this;
+
+        return request;
+    }
+
+    /**
+     * Checks if attachment saved at given time belongs to this request.
+     *
+     * @param topic
+     *            Attachment topic
+     * @param time
+     *            Attachment modification time
+     * @return TRUE if attachment belongs to this request
+     */
+    public Boolean matches(String topic, long time) {
+        return this.topic.equals(topic) && time >= leftBoundary && time <= rightBoundary;
+    }
+
+    /**
+     * Checks if attachments of this fallback request are not needed, because its primary request has attachments.
+     *
+     * @return TRUE if primary request has attachments
+     */
+    public Boolean isPrimaryFound() {
+        return primary != null && !primary.attachments.isEmpty();
+    }
+
+    /**
+     * Removes files of attachments found for this fallback request when attachments of its primary request are used.
+     * Files with the same name as saved attachment of primary request are kept.
+     *
+     * @throws InterruptedException
+     */
+    public void discardAttachments() throws InterruptedException {
+        HashSet<String> kept = new HashSet<String>();
+
+        for (Attachment attachment : primary.attachments) {
+            attachment.await();
+
+            if (attachment.isSaved()) {
+                kept.add(attachment.getFileName());
+            }
+        }
+
+        for (Attachment attachment : attachments) {
+            attachment.await();
+
+            if (!kept.contains(attachment.getFileName())) {
+                attachment.delete();
+            }
+        }
+
+        attachments.clear();
+    }
+
+    /**
+     * Checks if no more attachments should be added to this request.
+     *
+     * @return TRUE if attachments limit has been reached
+     */
+    public Boolean isLimitReached() {
+        return tenant.isLimitReached(attachments.size());
+    }
+
+    /**
+     * Adds attachment found for this request.
+     *
+     * @param attachment
+     *            Attachment
+     * @return Number of the attachment within notification
+     */
+    public int addAttachment(Attachment attachment) {
+        attachments.add(attachment);
+
+        return attachments.size();
+    }
+
+    /**
+     * Gets ticket source of the notification.
+     *
+     * @return Ticket source
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Gets customer tool of the notification.
+     *
+     * @return Customer tool
+     */
+    public Tenant getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Gets metrics of the notification.
+     *
+     * @return Record metrics
+     */
+    public RecordMetrics getMetrics() {
+        return tenant.getMetrics(source);
+    }
+
+    /**
+     * Gets ticket number (attachment topic).
+     *
+     * @return Topic
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Gets request this request is fallback for.
+     *
+     * @return Primary request or NULL if this request is not a fallback
+     */
+    public AttachmentRequest getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Gets destination path of the notification.
+     *
+     * @return Destination path
+     */
+    public String getDestinationPath() {
+        return destinationPath;
+    }
+
+    /**
+     * Gets file name of the notification.
+     *
+     * @return File name
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Gets date boundaries.
+     *
+     * @return Dates as long values
+     */
+    public long[] getBoundaries() {
+        return new long[] { leftBoundary, rightBoundary };
+    }
+
+    /**
+     * Gets attachments found for this request.
+     *
+     * @return List of attachments
+     */
+    public ArrayList<Attachment> getAttachments() {
+        return attachments;
+    }
+}
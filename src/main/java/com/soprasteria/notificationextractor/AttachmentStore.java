@@ -0,0 +1,268 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents content-addressed store of attachments. Store is the configured directory or ".cas" directory in
+ * the destination (customer tool output) directory, attachment content is kept there once and attachment files are hard
+ * links to it. Attachment is copied when hard link can't be created (e.g. store on other volume). Content which is not
+ * linked from any attachment file anymore is removed by {@link #cleanup()}.
+ *
+ * @author sgacka
+ */
+public class AttachmentStore {
+
+    /**
+     * Name of the store directory
+     */
+    private static final String STORE_NAME = ".cas";
+    /**
+     * Maximum number of remembered directories
+     */
+    private static final int MAX_DIRECTORIES = 10000;
+    /**
+     * Content and temporary files younger than this (in milliseconds) are not removed, they may be linked right now
+     */
+    private static final long MIN_CLEANUP_AGE = 60 * 60 * 1000L;
+    /**
+     * Marker of directories without store
+     */
+    private static final File NONE = new File("");
+    private static final ConcurrentHashMap<String, File> stores = new ConcurrentHashMap<String, File>();
+    private static final ConcurrentHashMap<File, Boolean> used = new ConcurrentHashMap<File, Boolean>();
+    private static final Logger logger = Logger.getLogger(AttachmentStore.class);
+    private static final Metrics.Counter linked = Metrics.counter(Metrics.ATTACHMENT_STORE_LINK, "result", "link");
+    private static final Metrics.Counter copied = Metrics.counter(Metrics.ATTACHMENT_STORE_LINK, "result", "copy");
+
+    /**
+     * Gets store for attachments saved in directory.
+     *
+     * @param directory
+     *            Destination directory
+     * @return Store directory or NULL if store can't be created on the volume
+     */
+    public static File getStore(File directory) {
+        String path = directory.getAbsolutePath();
+        File store = stores.get(path);
+
+        if (store == null) {
+            store = findStore(directory);
+
+            if (stores.size() >= MAX_DIRECTORIES) {
+                stores.clear();
+            }
+            stores.put(path, store);
+        }
+
+        return store == NONE ? null : store;
+    }
+
+    /**
+     * Gets file with attachment content in store.
+     *
+     * @param store
+     *            Store directory
+     * @param digest
+     *            Digest of attachment content
+     * @return File in store, it doesn't have to exist
+     */
+    public static File getObject(File store, byte[] digest) {
+        String address = HexFormat.of().formatHex(digest);
+
+        return new File(store, address.substring(0, 2) + File.separator + address);
+    }
+
+    /**
+     * Creates temporary file in store, content is written into it before it is added to store.
+     *
+     * @param store
+     *            Store directory
+     * @return Temporary file
+     * @throws IOException
+     */
+    public static File createTempFile(File store) throws IOException {
+        if (!store.isDirectory()) {
+            store.mkdirs();
+        }
+
+        return File.createTempFile("attachment", ".tmp", store);
+    }
+
+    /**
+     * Adds written content to store.
+     *
+     * @param channel
+     *            Open channel of temporary file, closed by {@link OutputCommitter}
+     * @param temp
+     *            Temporary file with content
+     * @param object
+     *            File in store
+     * @throws Exception
+     */
+    public static void add(FileChannel channel, File temp, File object) throws Exception {
+        if (!object.getParentFile().isDirectory()) {
+            object.getParentFile().mkdirs();
+        }
+
+        // content added by other worker in the meantime is the same, so it can be replaced
+        OutputCommitter.commit(channel, temp, object);
+    }
+
+    /**
+     * Makes attachment file from content in store - with hard link or, if it can't be created, with a copy.
+     *
+     * @param object
+     *            File in store
+     * @param target
+     *            Attachment file
+     * @throws IOException
+     */
+    public static void link(File object, File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+
+        try {
+            Files.createLink(target.toPath(), object.toPath());
+            linked.increment();
+
+            return;
+        } catch (UnsupportedOperationException e) {
+            logger.debug("Hard links are not supported for " + target.getPath(), e);
+        } catch (FileSystemException e) {
+            logger.debug("Unable to create hard link " + target.getPath(), e);
+        }
+
+        copied.increment();
+        Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Removes content which is not linked from any attachment file (link count 1) and temporary files left by failed
+     * writes from all stores used so far. Link counts are known only on file systems with unix attributes, elsewhere only
+     * temporary files are removed.
+     */
+    public static void cleanup() {
+        if (Configuration.attachmentStorePath != null) {
+            used.put(new File(Configuration.attachmentStorePath).getAbsoluteFile(), Boolean.TRUE);
+        }
+
+        long removed = 0;
+        for (File store : used.keySet()) {
+            try {
+                removed += cleanup(store.toPath());
+            } catch (IOException e) {
+                logger.warn("Unable to clean attachment store " + store.getPath() + ": " + e.getMessage());
+            }
+        }
+
+        if (removed > 0) {
+            logger.info("Attachment store cleanup: " + removed + " file(s) removed");
+        }
+    }
+
+    /**
+     * Removes unused content and temporary files from store.
+     *
+     * @param store
+     *            Store directory
+     * @return Number of removed files
+     * @throws IOException
+     */
+    private static long cleanup(Path store) throws IOException {
+        if (!Files.isDirectory(store)) {
+            return 0;
+        }
+
+        long removed = 0;
+        Boolean hasLinkCount = Boolean.TRUE;
+        FileTime limit = FileTime.fromMillis(System.currentTimeMillis() - MIN_CLEANUP_AGE);
+        DirectoryStream<Path> entries = Files.newDirectoryStream(store);
+
+        try {
+            for (Path entry : entries) {
+                if (!Files.isDirectory(entry)) {
+                    // temporary file of content being added
+                    if (Files.getLastModifiedTime(entry).compareTo(limit) < 0 && Files.deleteIfExists(entry)) {
+                        removed++;
+                    }
+
+                    continue;
+                }
+
+                if (!hasLinkCount) {
+                    continue;
+                }
+
+                DirectoryStream<Path> objects = Files.newDirectoryStream(entry);
+                try {
+                    for (Path object : objects) {
+                        if (Files.getLastModifiedTime(object).compareTo(limit) >= 0) {
+                            continue;
+                        }
+
+                        int links;
+                        try {
+                            links = ((Number) Files.getAttribute(object, "unix:nlink")).intValue();
+                        } catch (UnsupportedOperationException e) {
+                            logger.debug("Link counts are not available in attachment store " + store, e);
+                            hasLinkCount = Boolean.FALSE;
+                            break;
+                        }
+
+                        // attachment files which linked the content have been removed by their consumers
+                        if (links == 1 && Files.deleteIfExists(object)) {
+                            removed++;
+                        }
+                    }
+                } finally {
+                    objects.close();
+                }
+            }
+        } finally {
+            entries.close();
+        }
+
+        return removed;
+    }
+
+    /**
+     * Creates store for destination directory - configured directory or ".cas" directory in destination directory.
+     *
+     * @param directory
+     *            Destination directory
+     * @return Store directory or NONE if it can't be created
+     */
+    private static File findStore(File directory) {
+        try {
+            Path store;
+
+            if (Configuration.attachmentStorePath != null) {
+                store = new File(Configuration.attachmentStorePath).toPath().toAbsolutePath();
+            } else {
+                store = directory.toPath().toAbsolutePath().resolve(STORE_NAME);
+            }
+
+            Files.createDirectories(store);
+            used.put(store.toFile(), Boolean.TRUE);
+
+            logger.debug("Attachment store for " + directory.getPath() + ": " + store);
+
+            return store.toFile();
+        } catch (IOException e) {
+            logger.warn("Attachment store can't be created for " + directory.getPath()
+                    + ", attachments will be saved as separate files: " + e.getMessage());
+
+            return NONE;
+        }
+    }
+}
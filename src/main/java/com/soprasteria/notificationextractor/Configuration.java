@@ -3,8 +3,16 @@ package com.soprasteria.notificationextractor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
@@ -18,9 +26,13 @@ import org.jasypt.properties.EncryptableProperties;
 public class Configuration {
 
     /**
-     * Customer tool for which ticket should be extracted
+     * Customer tool for which ticket should be extracted (names joined with "+" if there are more)
      */
     public static String customer_tool = null;
+    /**
+     * Customer tools for which tickets are extracted, sorted from the longest name
+     */
+    public static final ArrayList<Tenant> tenants = new ArrayList<Tenant>();
     /**
      * Database user
      */
@@ -41,10 +53,130 @@ public class Configuration {
      * Database sid
      */
     public static String db_sid = null;
+    /**
+     * Database JDBC URL, used instead of host, port and sid if provided (e.g. local stand-in database)
+     */
+    public static String db_url = null;
+    /**
+     * Number of pooled database connections used by workers
+     */
+    public static int db_pool_size = 10;
+    /**
+     * Number of eventout rows transferred from database in one round trip
+     */
+    public static int fetchSize = 100;
+    /**
+     * Number of eventout records claimed at once when eventout is shared by several instances, records are not claimed if 0
+     */
+    public static int claimBatchSize = 0;
+    /**
+     * Eventout records without customer tool name are filtered out in database if TRUE
+     */
+    public static Boolean filterEventOut = Boolean.TRUE;
+    /**
+     * Number of eventout records which attachments are retrieved with one query
+     */
+    public static int attachmentBatchSize = 10;
+    /**
+     * Records are processed each on its own virtual thread instead of pipeline stages if TRUE
+     */
+    public static Boolean useVirtualThreads = Boolean.FALSE;
+    /**
+     * Maximum number of records processed at once on virtual threads
+     */
+    public static int virtualMaxRecords = 1000;
+    /**
+     * Maximum number of evFields reads running against database at once
+     */
+    public static int dbMaxConcurrency = 10;
+    /**
+     * Number of evFields characters read from database in one round trip, evFields is read from its end
+     */
+    public static int clobChunkSize = 32768;
+    /**
+     * Maximum number of line item phase numbers kept in cache
+     */
+    public static int phaseCacheSize = 10000;
+    /**
+     * Time (in seconds) after which cached line item phase number is read from database again
+     */
+    public static int phaseCacheTtl = 3600;
+    /**
+     * Maximum number of prepared statements cached by every pooled connection
+     */
+    public static int statementCacheSize = 50;
+    /**
+     * Number of parse stage workers
+     */
+    public static int parseThreads = 4;
+    /**
+     * Maximum number of records waiting for parse stage
+     */
+    public static int parseQueueSize = 100;
+    /**
+     * Number of attachments stage workers
+     */
+    public static int attachmentThreads = 10;
+    /**
+     * Maximum number of records waiting for attachments stage
+     */
+    public static int attachmentQueueSize = 100;
+    /**
+     * Memory (in MB) for attachment data kept in heap by all workers
+     */
+    public static int memoryBudget = 256;
+    /**
+     * Maximum size (in KB) of attachment data kept in memory, larger attachments are spooled in temporary file
+     */
+    public static int spoolMemoryLimit = 1024;
+    /**
+     * Number of workers decompressing attachments
+     */
+    public static int decompressThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Maximum number of attachments waiting for decompression
+     */
+    public static int decompressQueueSize = 100;
+    /**
+     * Number of write stage workers
+     */
+    public static int writeThreads = 16;
+    /**
+     * Maximum number of records waiting for write stage
+     */
+    public static int writeQueueSize = 100;
+    /**
+     * Time (in seconds) between logging stage queue depths
+     */
+    public static int stageReportInterval = 30;
+    /**
+     * Maximum number of eventout records removed in one batch
+     */
+    public static int deleteBatchSize = 100;
+    /**
+     * Maximum time (in milliseconds) processed record waits for removal
+     */
+    public static int deleteBatchInterval = 1000;
     /**
      * Log path
      */
     private static String logPath = null;
+    /**
+     * Path of the metrics file (Prometheus text format), no file is written if NULL
+     */
+    public static String metricsPath = null;
+    /**
+     * Time (in seconds) between metrics file updates in daemon mode
+     */
+    public static int metricsInterval = 60;
+    /**
+     * Path of the journal of processed records, journal is not used if NULL
+     */
+    public static String journalPath = null;
+    /**
+     * Time (in days) after which journal entries are removed
+     */
+    public static int journalRetention = 30;
     /**
      * Attachments are ignored if TRUE
      */
@@ -53,10 +185,46 @@ public class Configuration {
      * Records are not removed TRUE
      */
     public static Boolean isReadOnly = Boolean.FALSE;
+    /**
+     * Eventout is polled until application is stopped if TRUE
+     */
+    public static Boolean isDaemon = Boolean.FALSE;
+    /**
+     * Minimal time (in milliseconds) between eventout polls in daemon mode
+     */
+    public static int pollIntervalMin = 1000;
+    /**
+     * Maximal time (in milliseconds) between eventout polls in daemon mode, used when eventout stays empty
+     */
+    public static int pollIntervalMax = 60000;
+    /**
+     * Time (in seconds) after which whole eventout is read again in daemon mode
+     */
+    public static int fullScanInterval = 600;
     /**
      * Attachments are limited if TRUE
      */
     public static Boolean limitAttachments = Boolean.FALSE;
+    /**
+     * Attachments with the same content are saved once in attachment store and linked if TRUE
+     */
+    public static Boolean dedupAttachments = Boolean.FALSE;
+    /**
+     * Directory of attachment store, ".cas" directory in destination directory is used if NULL
+     */
+    public static String attachmentStorePath = null;
+    /**
+     * Log events are passed to appenders by background thread if TRUE
+     */
+    public static Boolean asyncLogging = Boolean.TRUE;
+    /**
+     * Number of log events waiting for background thread, workers wait when buffer is full
+     */
+    public static int logBufferSize = 8192;
+    /**
+     * Files are written under temporary name and renamed when complete
+     */
+    public static Boolean atomicOutput = Boolean.FALSE;
     /**
      * Attachments limit value
      */
@@ -76,7 +244,7 @@ public class Configuration {
     /**
      * Notification counter
      */
-    private static int matchingNotificationsCount = 0;
+    private static final AtomicInteger matchingNotificationsCount = new AtomicInteger();
     /**
      * Properties from config file
      */
@@ -110,11 +278,21 @@ public class Configuration {
             // database
             validateDatabaseInfo();
 
+            // processing
+            validateProcessingInfo();
+
             // set log path for logger
             validatePaths();
 
             // set logger properties
             PropertyConfigurator.configure(properities);
+            if (asyncLogging) {
+                configureAsyncLogging(Logger.getRootLogger());
+
+                for (Tenant tenant : tenants) {
+                    configureAsyncLogging(tenant.getLogger());
+                }
+            }
 
             return Boolean.TRUE;
         } catch (FileNotFoundException fnfe) {
@@ -141,6 +319,31 @@ public class Configuration {
             System.exit(1);
         }
 
+        // several customer tools are served with one eventout scan
+        StringBuilder names = new StringBuilder();
+        tenants.clear();
+
+        for (String name : customer_tool.split(",")) {
+            name = name.trim();
+
+            if (!name.isEmpty()) {
+                tenants.add(getTenant(name));
+                names.append(names.length() > 0 ? "+" : "").append(name);
+            }
+        }
+
+        if (tenants.isEmpty()) {
+            System.out.println("Customer tool name was not provided!");
+            System.exit(1);
+        }
+
+        customer_tool = names.toString();
+        Collections.sort(tenants, new Comparator<Tenant>() {
+            public int compare(Tenant first, Tenant second) {
+                return second.getName().length() - first.getName().length();
+            }
+        });
+
         // validate notification Time Zone
         timeZoneCode = properities.getProperty("tz_code").toUpperCase();
         if (timeZoneCode == null || timeZoneCode.isEmpty()) {
@@ -148,6 +351,40 @@ public class Configuration {
         }
     }
 
+    /**
+     * Gets customer tool with its own parameters, attachments policy from command line is used if it is not set.
+     *
+     * @param name
+     *            Customer tool name
+     * @return Customer tool
+     */
+    private static Tenant getTenant(String name) {
+        String outputRoot = properities.getProperty(name + ".output_root");
+        if (outputRoot != null) {
+            outputRoot = outputRoot.trim();
+
+            while (outputRoot.endsWith("/") || outputRoot.endsWith("\\")) {
+                outputRoot = outputRoot.substring(0, outputRoot.length() - 1);
+            }
+
+            if (outputRoot.isEmpty()) {
+                outputRoot = null;
+            }
+        }
+
+        String policy = properities.getProperty(name + ".attachments", "").trim().toLowerCase();
+
+        if ("all".equals(policy)) {
+            return new Tenant(name, outputRoot, Boolean.FALSE, Boolean.FALSE, 0);
+        } else if ("none".equals(policy)) {
+            return new Tenant(name, outputRoot, Boolean.TRUE, Boolean.FALSE, 0);
+        } else if (policy.startsWith("limit:")) {
+            return new Tenant(name, outputRoot, Boolean.FALSE, Boolean.TRUE, getNumber(policy.substring(6).trim()));
+        }
+
+        return new Tenant(name, outputRoot, ignoreAttachments, limitAttachments, attachmentLimit);
+    }
+
     /**
      * Validates database configuration parameters.
      */
@@ -157,6 +394,8 @@ public class Configuration {
         db_host = properities.getProperty("db_host");
         db_port = getNumber(properities.getProperty("db_port"));
         db_sid = properities.getProperty("db_sid");
+        db_url = properities.getProperty("db_url");
+        db_pool_size = getPositiveNumber("db_pool_size", db_pool_size);
 
         if (db_user == null || db_user.isEmpty()) {
             System.out.println("Database user was not provided!");
@@ -167,6 +406,14 @@ public class Configuration {
             System.out.println("Warning! - Database password was not provided");
         }
 
+        // host, port and sid are not needed with JDBC URL
+        if (db_url != null && !db_url.trim().isEmpty()) {
+            db_url = db_url.trim();
+
+            return;
+        }
+        db_url = null;
+
         if (db_host == null || db_host.isEmpty()) {
             System.out.println("Database host was not provided!");
             System.exit(1);
@@ -183,6 +430,101 @@ public class Configuration {
         }
     }
 
+    /**
+     * Moves appenders of logger behind asynchronous appender (it can't be defined with properties file). Buffered events
+     * are written when application ends.
+     *
+     * @param root
+     *            Logger with appenders
+     */
+    private static void configureAsyncLogging(Logger root) {
+        ArrayList<Appender> appenders = new ArrayList<Appender>();
+
+        for (Enumeration<?> e = root.getAllAppenders(); e.hasMoreElements();) {
+            appenders.add((Appender) e.nextElement());
+        }
+
+        if (appenders.isEmpty()) {
+            return;
+        }
+
+        AsyncAppender async = new AsyncAppender();
+        async.setName("ASYNC_" + root.getName());
+        async.setBufferSize(logBufferSize);
+        async.setBlocking(true);
+        // location is not known after event leaves worker thread, so it is never captured
+        async.setLocationInfo(false);
+
+        for (Appender appender : appenders) {
+            async.addAppender(appender);
+        }
+
+        root.removeAllAppenders();
+        root.addAppender(async);
+    }
+
+    /**
+     * Validates processing parameters.
+     */
+    private static void validateProcessingInfo() {
+        fetchSize = getPositiveNumber("fetch_size", fetchSize);
+        claimBatchSize = getPositiveNumber("claim_batch_size", claimBatchSize);
+        filterEventOut = !"none".equalsIgnoreCase(properities.getProperty("eventout_filter", "customer_tool").trim());
+        attachmentBatchSize = getPositiveNumber("attachment_batch_size", attachmentBatchSize);
+        useVirtualThreads = "virtual".equalsIgnoreCase(properities.getProperty("execution_mode", "pipeline").trim());
+        virtualMaxRecords = getPositiveNumber("virtual_max_records", virtualMaxRecords);
+        dbMaxConcurrency = getPositiveNumber("db_max_concurrency", db_pool_size);
+        clobChunkSize = getPositiveNumber("clob_chunk_size", clobChunkSize);
+        phaseCacheSize = getPositiveNumber("phase_cache_size", phaseCacheSize);
+        phaseCacheTtl = getPositiveNumber("phase_cache_ttl", phaseCacheTtl);
+        statementCacheSize = getPositiveNumber("statement_cache_size", statementCacheSize);
+        parseThreads = getPositiveNumber("parse_threads", parseThreads);
+        parseQueueSize = getPositiveNumber("parse_queue_size", fetchSize);
+        attachmentThreads = getPositiveNumber("attachment_threads", db_pool_size);
+        attachmentQueueSize = getPositiveNumber("attachment_queue_size", attachmentQueueSize);
+        dedupAttachments = "link".equalsIgnoreCase(properities.getProperty("attachment_mode", "copy").trim());
+        atomicOutput = "atomic".equalsIgnoreCase(properities.getProperty("output_commit", "direct").trim());
+        memoryBudget = getPositiveNumber("memory_budget", memoryBudget);
+        spoolMemoryLimit = getPositiveNumber("spool_memory_limit", spoolMemoryLimit);
+        decompressThreads = getPositiveNumber("decompress_threads", decompressThreads);
+        decompressQueueSize = getPositiveNumber("decompress_queue_size", decompressQueueSize);
+        writeThreads = getPositiveNumber("write_threads", writeThreads);
+        writeQueueSize = getPositiveNumber("write_queue_size", writeQueueSize);
+        stageReportInterval = getPositiveNumber("stage_report_interval", stageReportInterval);
+        deleteBatchSize = getPositiveNumber("delete_batch_size", deleteBatchSize);
+        deleteBatchInterval = getPositiveNumber("delete_batch_interval", deleteBatchInterval);
+        pollIntervalMin = getPositiveNumber("poll_interval_min", pollIntervalMin);
+        pollIntervalMax = Math.max(pollIntervalMin, getPositiveNumber("poll_interval_max", pollIntervalMax));
+        fullScanInterval = getPositiveNumber("full_scan_interval", fullScanInterval);
+        metricsInterval = getPositiveNumber("metrics_interval", metricsInterval);
+        journalRetention = getPositiveNumber("journal_retention", journalRetention);
+    }
+
+    /**
+     * Gets optional numeric parameter, exits if provided value is not a positive number.
+     *
+     * @param name
+     *            Parameter name
+     * @param defaultValue
+     *            Value used when parameter was not provided
+     * @return Parameter value
+     */
+    private static int getPositiveNumber(String name, int defaultValue) {
+        String value = properities.getProperty(name);
+
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        int number = getNumber(value.trim());
+        if (number < 1) {
+            System.out.println("Parameter " + name + " must be a positive number!");
+            System.exit(1);
+        }
+
+        return number;
+    }
+
     /**
      * Validates provided paths.
      */
@@ -199,13 +541,62 @@ public class Configuration {
         }
 
         properities.setProperty("log4j.appender.A2.file", logPath + File.separator + customer_tool + "_NOTIFICATION_EXTRACTOR.log");
+
+        // with several customer tools records of every tool are also logged in its own file
+        if (tenants.size() > 1 && properities.getProperty("log4j.appender.A2") != null) {
+            for (Tenant tenant : tenants) {
+                addTenantLog(tenant);
+            }
+        }
+        asyncLogging = !"sync".equalsIgnoreCase(properities.getProperty("log_mode", "async").trim());
+        logBufferSize = getPositiveNumber("log_buffer_size", logBufferSize);
+
+        // metrics file is optional
+        metricsPath = properities.getProperty("metrics_path");
+        if (metricsPath != null && metricsPath.trim().isEmpty()) {
+            metricsPath = null;
+        }
+
+        // journal is optional
+        journalPath = properities.getProperty("journal_path");
+        if (journalPath != null && journalPath.trim().isEmpty()) {
+            journalPath = null;
+        }
+
+        // attachment store directory is optional
+        attachmentStorePath = properities.getProperty("attachment_store");
+        if (attachmentStorePath != null && attachmentStorePath.trim().isEmpty()) {
+            attachmentStorePath = null;
+        }
+    }
+
+    /**
+     * Defines log file of customer tool with the same settings as A2 appender.
+     *
+     * @param tenant
+     *            Customer tool
+     */
+    private static void addTenantLog(Tenant tenant) {
+        String appender = "T_" + tenant.getName();
+        String path = properities.getProperty(tenant.getName() + ".log_path", logPath);
+
+        for (String key : new ArrayList<String>(properities.stringPropertyNames())) {
+            if (key.startsWith("log4j.appender.A2.")) {
+                properities.setProperty("log4j.appender." + appender + key.substring(17), properities.getProperty(key));
+            }
+        }
+
+        properities.setProperty("log4j.appender." + appender, properities.getProperty("log4j.appender.A2"));
+        properities.setProperty("log4j.appender." + appender + ".file",
+                path + File.separator + tenant.getName() + "_NOTIFICATION_EXTRACTOR.log");
+        properities.setProperty("log4j.logger." + tenant.getLogger().getName(), "INHERITED, " + appender);
     }
 
     /**
      * Increases matching notification counter.
      */
-    public synchronized static void increaseNotificationsCount() {
-        matchingNotificationsCount++;
+    public static void increaseNotificationsCount() {
+        matchingNotificationsCount.incrementAndGet();
     }
 
     /**
@@ -214,7 +605,7 @@ public class Configuration {
      * @return Number of notifications found
      */
     public static String getNotificationsCount() {
-        return "Total notifications found: " + matchingNotificationsCount;
+        return "Total notifications found: " + matchingNotificationsCount.get();
     }
 
     /**
@@ -0,0 +1,213 @@
+package com.soprasteria.notificationextractor;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents bounded pool of database connections, every connection keeps its own prepared statements.
+ *
+ * @author sgacka
+ */
+public class ConnectionPool {
+
+    private final DataSource dataSource;
+    private final int size;
+    private final int statementCacheSize;
+    private final ArrayBlockingQueue<PooledConnection> idle;
+    private final ArrayList<PooledConnection> all;
+    private final ReentrantLock lock;
+    /**
+     * Number of closed connections removed from pool, they are opened again when needed
+     */
+    private int missing;
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+    /**
+     * ConnectionPool constructor.
+     *
+     * @param dataSource
+     *            Configured data source
+     * @param size
+     *            Number of connections in pool
+     * @param statementCacheSize
+     *            Maximum number of prepared statements cached by every connection
+     */
+    public ConnectionPool(DataSource dataSource, int size, int statementCacheSize) {
+        this.dataSource = dataSource;
+        this.size = size;
+        this.statementCacheSize = statementCacheSize;
+        this.idle = new ArrayBlockingQueue<PooledConnection>(size);
+        this.all = new ArrayList<PooledConnection>(size);
+        // lock instead of synchronized, so virtual threads do not pin their carrier threads
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Opens all connections in pool.
+     *
+     * @throws SQLException
+     */
+    public void open() throws SQLException {
+        for (int i = 0; i < size; i++) {
+            PooledConnection connection = newConnection();
+
+            lock.lock();
+            try {
+                all.add(connection);
+            } finally {
+                lock.unlock();
+            }
+            idle.add(connection);
+        }
+    }
+
+    /**
+     * Gets connection from pool, waits until one is available. Connection removed from pool earlier is opened again if no
+     * connection is idle.
+     *
+     * @return Database connection
+     * @throws InterruptedException
+     * @throws SQLException
+     */
+    public PooledConnection getConnection() throws InterruptedException, SQLException {
+        while (true) {
+            PooledConnection connection = idle.poll();
+
+            if (connection == null) {
+                connection = openMissing();
+            }
+
+            // waiting is interrupted from time to time, so connections removed in the meantime are opened again
+            if (connection == null) {
+                connection = idle.poll(1, TimeUnit.SECONDS);
+            }
+
+            if (connection != null) {
+                return connection;
+            }
+        }
+    }
+
+    /**
+     * Returns connection to pool. Closed connection is removed from pool, new one is opened when needed.
+     *
+     * @param connection
+     *            Connection taken with {@link #getConnection()}
+     */
+    public void releaseConnection(PooledConnection connection) {
+        try {
+            if (!connection.isClosed()) {
+                idle.offer(connection);
+
+                return;
+            }
+
+            logger.warn("Pooled connection has been closed, it is removed from pool");
+        } catch (SQLException e) {
+            logger.error("Unable to check pooled connection, it is removed from pool", e);
+        }
+
+        lock.lock();
+        try {
+            all.remove(connection);
+            missing++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens connection in place of connection removed from pool.
+     *
+     * @return Database connection or NULL if pool is complete
+     * @throws SQLException
+     */
+    private PooledConnection openMissing() throws SQLException {
+        lock.lock();
+        try {
+            if (missing == 0) {
+                return null;
+            }
+
+            missing--;
+        } finally {
+            lock.unlock();
+        }
+
+        PooledConnection connection;
+
+        try {
+            connection = newConnection();
+        } catch (SQLException e) {
+            lock.lock();
+            try {
+                missing++;
+            } finally {
+                lock.unlock();
+            }
+
+            throw e;
+        }
+
+        lock.lock();
+        try {
+            all.add(connection);
+        } finally {
+            lock.unlock();
+        }
+
+        return connection;
+    }
+
+    /**
+     * Closes all connections in pool.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            for (PooledConnection connection : all) {
+                try {
+                    connection.close();
+                } catch (Throwable e) {
+                    logger.error("Unable to close pooled connection", e);
+                }
+            }
+
+            all.clear();
+            missing = 0;
+        } finally {
+            lock.unlock();
+        }
+
+        idle.clear();
+    }
+
+    /**
+     * Gets number of connections in pool.
+     *
+     * @return Pool size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Opens new connection.
+     *
+     * @return Database connection
+     * @throws SQLException
+     */
+    private PooledConnection newConnection() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        // removals are committed explicitly, one commit per batch
+        connection.setAutoCommit(false);
+
+        return new PooledConnection(connection, statementCacheSize);
+    }
+}
@@ -1,6 +1,7 @@
 package com.soprasteria.notificationextractor;
 
-import java.io.ByteArrayOutputStream;
+import java.sql.Clob;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
@@ -10,9 +11,14 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+import javax.sql.DataSource;
 import oracle.jdbc.OracleConnection;
 import oracle.jdbc.pool.OracleDataSource;
+import org.apache.log4j.LogSF;
 import org.apache.log4j.Logger;
 
 /**
@@ -27,7 +33,15 @@ public class Database {
     private final String host;
     private final int port;
     private final String sid;
-    private OracleConnection connection;
+    private final int poolSize;
+    private Connection connection;
+    private Boolean isOracle;
+    private ConnectionPool pool;
+    private EventOutRemover remover;
+    private final ArrayList<String> claimedRemovals;
+    private Stage<Runnable> decompressor;
+    private final Semaphore clobReads;
+    private final PhaseNumberCache phaseNumbers;
     private static final Logger logger = Logger.getLogger(Database.class);
 
     /**
@@ -43,13 +57,19 @@ public class Database {
      *            Listening port
      * @param sid
      *            Database SID (name)
+     * @param poolSize
+     *            Number of pooled connections used by workers
      */
-    public Database(String user, String password, String host, int port, String sid) {
+    public Database(String user, String password, String host, int port, String sid, int poolSize) {
         this.user = user;
         this.password = password;
         this.host = host;
         this.port = port;
         this.sid = sid;
+        this.poolSize = poolSize;
+        this.clobReads = new Semaphore(Configuration.dbMaxConcurrency);
+        this.phaseNumbers = new PhaseNumberCache(Configuration.phaseCacheSize, Configuration.phaseCacheTtl);
+        this.claimedRemovals = new ArrayList<String>();
     }
 
     /**
@@ -57,20 +77,58 @@ public class Database {
      */
     public void connect() {
         try {
-            OracleDataSource ods = new OracleDataSource();
+            DataSource ds;
 
-            ods.setDriverType("thin");
-            ods.setUser(user);
-            ods.setPassword(password);
-            ods.setServerName(host);
-            ods.setPortNumber(port);
-            ods.setDatabaseName(sid); // sid
+            if (Configuration.db_url == null) {
+                OracleDataSource ods = new OracleDataSource();
 
-            logger.info("Connecting to database... (User: " + Configuration.db_user + ", Host: " + Configuration.db_host + ", Port: "
-                    + Configuration.db_port + ")");
+                ods.setDriverType("thin");
+                ods.setUser(user);
+                ods.setPassword(password);
+                ods.setServerName(host);
+                ods.setPortNumber(port);
+                ods.setDatabaseName(sid); // sid
 
-            connection = (OracleConnection) (ods.getConnection());
-            connection.setDefaultExecuteBatch(100);
+                logger.info("Connecting to database... (User: " + Configuration.db_user + ", Host: " + Configuration.db_host + ", Port: "
+                        + Configuration.db_port + ")");
+
+                ds = ods;
+            } else {
+                logger.info("Connecting to database... (User: " + Configuration.db_user + ", URL: " + Configuration.db_url + ")");
+
+                ds = new DriverDataSource(Configuration.db_url, user, password);
+            }
+
+            connection = ds.getConnection();
+            // SQL differs only where Oracle specific functions are used
+            isOracle = connection.isWrapperFor(OracleConnection.class);
+
+            // claimed records stay locked until claim is committed
+            if (Configuration.claimBatchSize > 0) {
+                connection.setAutoCommit(false);
+            }
+
+            // connections used by workers, eventout cursor stays on the main connection
+            pool = new ConnectionPool(ds, poolSize, Configuration.statementCacheSize);
+            pool.open();
+
+            logger.info("Connection pool has been opened (size: " + poolSize + ")");
+
+            remover = new EventOutRemover(this, Configuration.deleteBatchSize, Configuration.deleteBatchInterval);
+            remover.start();
+
+            // decompression is CPU bound, so it runs on its own workers, not on those holding connections
+            Attachment.configure(Configuration.spoolMemoryLimit, Configuration.decompressThreads);
+            MemoryBudget.configure(Configuration.memoryBudget);
+            decompressor = new Stage<Runnable>("inflate", Configuration.decompressThreads, Configuration.decompressQueueSize, 1,
+                    new Stage.Handler<Runnable>() {
+                        public void handle(List<Runnable> tasks) {
+                            for (Runnable task : tasks) {
+                                task.run();
+                            }
+                        }
+                    });
+            decompressor.start();
         } catch (Throwable e) {
             logger.fatal("Unable to connect to database", e);
 
@@ -88,6 +146,24 @@ public class Database {
      * Closes connection to database.
      */
     public void disconnect() {
+        if (decompressor != null) {
+            try {
+                decompressor.awaitIdle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            decompressor.stop();
+        }
+
+        if (remover != null) {
+            remover.close();
+        }
+
+        if (pool != null) {
+            pool.close();
+        }
+
         try {
             if (!connection.isClosed()) {
                 connection.close();
@@ -100,61 +176,321 @@ public class Database {
     }
 
     /**
-     * Gets list of eventout records.
+     * Opens forward-only cursor over eventout records. Rows are transferred from database in windows of the given size, so
+     * records can be processed while the rest of the queue is still being read.
      *
-     * @return List of eventout records
+     * @param fetchSize
+     *            Number of rows transferred in one round trip
+     * @param watermark
+     *            Only records with evsysseq above this value are read, all records if NULL
+     * @return Result set positioned before the first eventout record
      * @throws Exception
      */
-    public ArrayList<EventOutRecord> getEventOutRecords() throws Exception {
-        ArrayList<EventOutRecord> records = new ArrayList<EventOutRecord>();
+    public ResultSet getEventOutRecords(int fetchSize, String watermark) throws Exception {
+        PreparedStatement statement = connection.prepareStatement(getEventOutQuery(watermark), ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        setEventOutParameters(statement, watermark);
 
-        String query = "SELECT evfields, CAST(FROM_TZ(CAST(evtime AS TIMESTAMP), 'utc') AT TIME ZONE sessiontimezone AS DATE), evsysseq FROM eventoutm1 WHERE evtype = 'page' and evtime IS NOT NULL and evsysseq IS NOT NULL";
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(query);
+        return statement.executeQuery();
+    }
 
-        while (resultSet.next()) {
-            records.add(new EventOutRecord(resultSet.getClob(1), resultSet.getTimestamp(2).getTime(), resultSet.getString(3), this));
+    /**
+     * Opens cursor over at most claimSize eventout records with the lowest evsysseq and locks them, records locked by other
+     * instances are skipped. Records stay locked until claim is completed with {@link #flushRemovals()}.
+     *
+     * @param claimSize
+     *            Number of records to be claimed
+     * @param watermark
+     *            Only records with evsysseq above this value are claimed, all records if NULL
+     * @return Result set positioned before the first eventout record, ordered by evsysseq
+     * @throws Exception
+     */
+    public ResultSet claimEventOutRecords(int claimSize, String watermark) throws Exception {
+        String order = " ORDER BY LENGTH(evsysseq), evsysseq";
+        String query;
+
+        // at most claimSize rows are selected, so no more rows are locked
+        if (isOracle) {
+            // Oracle doesn't allow row limit in query with FOR UPDATE, so the lowest rows are chosen in subquery
+            query = getEventOutColumns() + " WHERE rowid IN (SELECT rid FROM (SELECT rowid rid FROM eventoutm1 WHERE "
+                    + getEventOutConditions(watermark) + order + ") WHERE ROWNUM <= ?)" + order + " FOR UPDATE SKIP LOCKED";
+        } else {
+            query = getEventOutQuery(watermark) + order + " LIMIT ? FOR UPDATE";
         }
 
-        logger.info("Total eventout records found: " + records.size());
+        PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(Math.min(claimSize, Configuration.fetchSize));
+        int index = setEventOutParameters(statement, watermark);
+        statement.setInt(index, claimSize);
+
+        return statement.executeQuery();
+    }
+
+    /**
+     * Builds query for eventout records. Records without customer tool name in evFields are filtered out in database, so
+     * their CLOBs are not read by the extractor at all.
+     *
+     * @param watermark
+     *            Only records with evsysseq above this value are read, all records if NULL
+     * @return Query text
+     */
+    private String getEventOutQuery(String watermark) {
+        return getEventOutColumns() + " WHERE " + getEventOutConditions(watermark);
+    }
+
+    /**
+     * Builds select list of eventout query.
+     *
+     * @return Query text without conditions
+     */
+    private String getEventOutColumns() {
+        String evTime = isOracle ? "CAST(FROM_TZ(CAST(evtime AS TIMESTAMP), 'utc') AT TIME ZONE sessiontimezone AS DATE)" : "evtime";
 
-        return records;
+        return "SELECT evfields, " + evTime + ", evsysseq FROM eventoutm1";
     }
 
     /**
-     * Gets phase number for specified line item.
+     * Builds conditions of eventout query.
      *
-     * @param ticketNumber
-     *            Line item number
-     * @return Line item phase number
+     * @param watermark
+     *            Only records with evsysseq above this value are read, all records if NULL
+     * @return Conditions text
+     */
+    private String getEventOutConditions(String watermark) {
+        String query = "evtype = 'page' and evtime IS NOT NULL and evsysseq IS NOT NULL";
+        if (Configuration.filterEventOut) {
+            // destination path contains customer tool name, so evFields without any of them are ignored by parser anyway
+            String instr = isOracle ? "DBMS_LOB.INSTR(evfields, ?) > 0" : "INSTR(evfields, ?) > 0";
+
+            query += " and (" + instr;
+            for (int i = 1; i < Configuration.tenants.size(); i++) {
+                query += " or " + instr;
+            }
+            query += ")";
+        }
+        if (watermark != null) {
+            // numeric order of evsysseq strings, see compareEvSysSeq
+            query += " and (LENGTH(evsysseq) > ? or (LENGTH(evsysseq) = ? and evsysseq > ?))";
+        }
+
+        return query;
+    }
+
+    /**
+     * Sets parameters of conditions built with {@link #getEventOutConditions(String)}.
+     *
+     * @param statement
+     *            Eventout query
+     * @param watermark
+     *            Only records with evsysseq above this value are read, all records if NULL
+     * @return Index of the next parameter
      * @throws Exception
      */
-    public synchronized String getLineItemPhaseNum(String ticketNumber) throws Exception {
-        PreparedStatement pStatement = connection.prepareStatement("SELECT phase_num FROM ocmlm1 WHERE \"NUMBER\" = ?");
-        pStatement.setString(1, ticketNumber);
-        ResultSet resultSet = pStatement.executeQuery();
-        String result;
+    private int setEventOutParameters(PreparedStatement statement, String watermark) throws Exception {
+        int index = 1;
 
-        if (resultSet.next()) {
-            if (logger.isTraceEnabled()) {
-                logger.trace(getTicketNumber(ticketNumber) + "Phase num: " + resultSet.getString(1));
+        if (Configuration.filterEventOut) {
+            for (Tenant tenant : Configuration.tenants) {
+                statement.setString(index++, tenant.getName());
             }
+        }
+        if (watermark != null) {
+            statement.setInt(index++, watermark.length());
+            statement.setInt(index++, watermark.length());
+            statement.setString(index++, watermark);
+        }
 
-            result = resultSet.getString(1);
-        } else {
-            if (logger.isTraceEnabled()) {
-                logger.trace(getTicketNumber(ticketNumber) + "Phase num not found");
+        return index;
+    }
+
+    /**
+     * Compares evsysseq values in numeric order - shorter value is lower, values of the same length are compared as
+     * strings. Order is correct for numbers without leading zeros and for numbers padded to the same width, see
+     * {@link #isOrderedEvSysSeq(String)}.
+     *
+     * @param first
+     *            evsysseq value
+     * @param second
+     *            evsysseq value
+     * @return Negative number, zero or positive number if first value is lower, equal or higher
+     */
+    public static int compareEvSysSeq(String first, String second) {
+        if (first.length() != second.length()) {
+            return first.length() - second.length();
+        }
+
+        return first.compareTo(second);
+    }
+
+    /**
+     * Checks if evsysseq value can be compared with {@link #compareEvSysSeq(String, String)}.
+     *
+     * @param evSysSeq
+     *            evsysseq value
+     * @return TRUE if value is a number
+     */
+    public static Boolean isOrderedEvSysSeq(String evSysSeq) {
+        if (evSysSeq.isEmpty()) {
+            return Boolean.FALSE;
+        }
+
+        for (int i = 0; i < evSysSeq.length(); i++) {
+            if (!Character.isDigit(evSysSeq.charAt(i))) {
+                return Boolean.FALSE;
             }
+        }
+
+        return Boolean.TRUE;
+    }
 
-            result = "";
+    /**
+     * Gets evsysseq of current row of the eventout cursor.
+     *
+     * @param resultSet
+     *            Cursor opened with {@link #getEventOutRecords(int, String)}
+     * @return evsysseq key value
+     * @throws Exception
+     */
+    public String getEvSysSeq(ResultSet resultSet) throws Exception {
+        return resultSet.getString(3);
+    }
+
+    /**
+     * Creates eventout record from current row of the eventout cursor.
+     *
+     * @param resultSet
+     *            Cursor opened with {@link #getEventOutRecords(int, String)}
+     * @return Eventout record
+     * @throws Exception
+     */
+    public EventOutRecord getEventOutRecord(ResultSet resultSet) throws Exception {
+        return new EventOutRecord(resultSet.getClob(1), resultSet.getTimestamp(2).getTime(), resultSet.getString(3), this);
+    }
+
+    /**
+     * Gets notification part of evFields, CLOB is read from its end. Number of reads running at once is limited, pooled
+     * statements are limited by pool size.
+     *
+     * @param evFields
+     *            evFields CLOB of eventout record
+     * @return evFields content from last "telalert" to last "$end"
+     * @throws Exception
+     */
+    public String getEvFields(Clob evFields) throws Exception {
+        clobReads.acquire();
+
+        try {
+            return new EvFieldsReader(evFields, Configuration.clobChunkSize).read();
+        } finally {
+            clobReads.release();
+        }
+    }
+
+    /**
+     * Gets phase numbers for specified line items. Cached phase numbers are used, all other are read with one query.
+     *
+     * @param ticketNumbers
+     *            Line item numbers
+     * @return Phase numbers by line item number ("" if line item was not found)
+     * @throws Exception
+     */
+    public HashMap<String, String> getLineItemPhaseNums(List<String> ticketNumbers) throws Exception {
+        HashMap<String, String> result = new HashMap<String, String>();
+        ArrayList<String> missing = new ArrayList<String>();
+
+        for (String ticketNumber : ticketNumbers) {
+            String phaseNumber = phaseNumbers.get(ticketNumber);
+
+            if (phaseNumber != null) {
+                result.put(ticketNumber, phaseNumber);
+            } else if (!missing.contains(ticketNumber)) {
+                missing.add(ticketNumber);
+            }
         }
 
-        resultSet.close();
-        pStatement.close();
+        Metrics.counter(Metrics.PHASE_CACHE, "result", "hit").add(ticketNumbers.size() - missing.size());
+        Metrics.counter(Metrics.PHASE_CACHE, "result", "miss").add(missing.size());
+
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        PooledConnection pooled = pool.getConnection();
+
+        try {
+            // IN list is limited to 1000 values
+            for (int from = 0; from < missing.size(); from += 1000) {
+                getLineItemPhaseNums(pooled, missing.subList(from, Math.min(from + 1000, missing.size())), result);
+            }
+        } finally {
+            pool.releaseConnection(pooled);
+        }
 
         return result;
     }
 
+    /**
+     * Gets phase numbers for specified line items with one query using given connection.
+     *
+     * @param pooled
+     *            Connection taken from pool
+     * @param ticketNumbers
+     *            Line item numbers, at most 1000
+     * @param result
+     *            Phase numbers by line item number, found phase numbers are added to it
+     * @throws Exception
+     */
+    private void getLineItemPhaseNums(PooledConnection pooled, List<String> ticketNumbers, HashMap<String, String> result)
+            throws Exception {
+        StringBuilder keys = new StringBuilder();
+        // IN list is padded with the last number, so only few query texts are prepared and cached
+        int size = Math.min(getBucketSize(ticketNumbers.size()), 1000);
+
+        for (int i = 0; i < size; i++) {
+            keys.append(i > 0 ? ", ?" : "?");
+        }
+
+        String query = "SELECT \"NUMBER\", phase_num FROM ocmlm1 WHERE \"NUMBER\" IN (" + keys + ")";
+        PreparedStatement pStatement = pooled.prepareStatement(query);
+
+        try {
+            for (int i = 0; i < size; i++) {
+                pStatement.setString(i + 1, ticketNumbers.get(Math.min(i, ticketNumbers.size() - 1)));
+            }
+
+            ResultSet resultSet = pStatement.executeQuery();
+
+            try {
+                while (resultSet.next()) {
+                    String phaseNumber = resultSet.getString(2);
+
+                    if (!result.containsKey(resultSet.getString(1))) {
+                        result.put(resultSet.getString(1), phaseNumber == null ? "" : phaseNumber);
+                    }
+                }
+            } finally {
+                resultSet.close();
+            }
+        } catch (Exception e) {
+            pooled.discardStatement(query);
+
+            throw e;
+        }
+
+        for (String ticketNumber : ticketNumbers) {
+            if (!result.containsKey(ticketNumber)) {
+                result.put(ticketNumber, "");
+            }
+
+            if (logger.isTraceEnabled()) {
+                logger.trace(getTicketNumber(ticketNumber) + "Phase num: " + result.get(ticketNumber));
+            }
+
+            phaseNumbers.put(ticketNumber, result.get(ticketNumber));
+        }
+    }
+
     /**
      * Gets date boundaries based on notification date.
      *
@@ -167,7 +503,7 @@ public class Database {
      * @return Dates as long values
      * @throws Exception
      */
-    public synchronized long[] getActivityBoundaries(String source, String number, String fileDate) throws Exception {
+    public long[] getActivityBoundaries(String source, String number, String fileDate) throws Exception {
         Timestamp rightBoundary;
         Timestamp leftBoundary;
 
@@ -199,190 +535,538 @@ public class Database {
     }
 
     /**
-     * Gets attachments for current event record.
+     * Gets attachments for many event records with one query. Attachments found are added to the request they belong to.
+     * Fallback requests get attachments only if their primary request has no attachments in its time window.
      *
-     * @param ticketNumber
-     *            Ticket number
-     * @param boundaries
-     *            Date boundaries
-     * @return List of attachments
+     * @param requests
+     *            Attachment requests (topic and date boundaries) of event records
+     * @throws Exception
+     */
+    public void getAttachments(List<AttachmentRequest> requests) throws Exception {
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        PooledConnection pooled = pool.getConnection();
+
+        try {
+            getAttachments(pooled, requests);
+        } finally {
+            pool.releaseConnection(pooled);
+        }
+    }
+
+    /**
+     * Gets attachments for many event records using given connection.
+     *
+     * @param pooled
+     *            Connection taken from pool
+     * @param requests
+     *            Attachment requests (topic and date boundaries) of event records
      * @throws Exception
      */
-    public synchronized ArrayList<Attachment> getAttachments(String ticketNumber, long[] boundaries) throws Exception {
-        ArrayList<Attachment> attachments = new ArrayList<Attachment>();
+    private void getAttachments(PooledConnection pooled, List<AttachmentRequest> requests) throws Exception {
         PreparedStatement pStatement;
         String query, subQuery;
+        StringBuilder outerKeys = new StringBuilder();
+        StringBuilder innerKeys = new StringBuilder();
+
+        // requests with the same topic are matched by date when result rows are demultiplexed
+        HashMap<String, ArrayList<AttachmentRequest>> requestsByTopic = new HashMap<String, ArrayList<AttachmentRequest>>();
+        ArrayList<AttachmentRequest> fallbacks = new ArrayList<AttachmentRequest>();
+        ArrayList<AttachmentRequest> keys = new ArrayList<AttachmentRequest>();
+
+        for (AttachmentRequest request : requests) {
+            if (request.getPrimary() != null) {
+                fallbacks.add(request);
+            } else {
+                keys.add(request);
+            }
 
-        subQuery = "SELECT s2.\"UID\" FROM sysattachmem1 s2 WHERE s2.topic = ? AND s2.sysmodtime BETWEEN ? AND ? AND s2.segment = 0";
-        if (Configuration.limitAttachments) {
-            subQuery += " AND rownum <= ?";
+            ArrayList<AttachmentRequest> topicRequests = requestsByTopic.get(request.getTopic());
+            if (topicRequests == null) {
+                topicRequests = new ArrayList<AttachmentRequest>();
+                requestsByTopic.put(request.getTopic(), topicRequests);
+            }
+            topicRequests.add(request);
         }
-        query = "SELECT s1.filename, s1.\"UID\", s1.\"DATA\", s1.compressed, s1.\"SIZE\", s1.compressed_size FROM sysattachmem1 s1 WHERE s1.topic = ? AND s1.sysmodtime BETWEEN ? AND ? AND s1.\"UID\" IN ("
-                + subQuery + ") ORDER BY s1.sysmodtime, s1.\"UID\", s1.segment";
 
-        pStatement = connection.prepareStatement(query);
-        pStatement.setString(1, ticketNumber);
-        pStatement.setTimestamp(2, new Timestamp(boundaries[0]));
-        pStatement.setTimestamp(3, new Timestamp(boundaries[1]));
-        pStatement.setString(4, ticketNumber);
-        pStatement.setTimestamp(5, new Timestamp(boundaries[0]));
-        pStatement.setTimestamp(6, new Timestamp(boundaries[1]));
-        if (Configuration.limitAttachments) {
-            pStatement.setInt(7, Configuration.attachmentLimit);
+        // keys are padded with the last key of the same kind, so only few query texts are prepared and cached
+        pad(keys);
+        pad(fallbacks);
+        keys.addAll(fallbacks);
+
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) {
+                outerKeys.append(" OR ");
+                innerKeys.append(" OR ");
+            }
+            if (keys.get(i).getPrimary() != null) {
+                outerKeys.append("(s1.topic = ? AND s1.sysmodtime BETWEEN ? AND ? AND NOT EXISTS (SELECT 1 FROM sysattachmem1 s3"
+                        + " WHERE s3.topic = ? AND s3.sysmodtime BETWEEN ? AND ? AND s3.segment = 0))");
+            } else {
+                outerKeys.append("(s1.topic = ? AND s1.sysmodtime BETWEEN ? AND ?)");
+            }
+            innerKeys.append("(s2.topic = ? AND s2.sysmodtime BETWEEN ? AND ?)");
+        }
+
+        subQuery = "SELECT s2.\"UID\" FROM sysattachmem1 s2 WHERE s2.segment = 0 AND (" + innerKeys + ")";
+        // data column is the last one, so it can be read as a stream after all other columns
+        query = "SELECT s1.filename, s1.\"UID\", s1.compressed, s1.\"SIZE\", s1.compressed_size, s1.topic, s1.sysmodtime, s1.\"DATA\" FROM sysattachmem1 s1 WHERE ("
+                + outerKeys + ") AND s1.\"UID\" IN (" + subQuery + ") ORDER BY s1.topic, s1.sysmodtime, s1.\"UID\", s1.segment";
+
+        pStatement = pooled.prepareStatement(query);
+
+        int index = 1;
+        for (int pass = 0; pass < 2; pass++) {
+            for (AttachmentRequest request : keys) {
+                long[] boundaries = request.getBoundaries();
+
+                pStatement.setString(index++, request.getTopic());
+                pStatement.setTimestamp(index++, new Timestamp(boundaries[0]));
+                pStatement.setTimestamp(index++, new Timestamp(boundaries[1]));
+
+                AttachmentRequest primary = request.getPrimary();
+                if (pass == 0 && primary != null) {
+                    long[] primaryBoundaries = primary.getBoundaries();
+
+                    pStatement.setString(index++, primary.getTopic());
+                    pStatement.setTimestamp(index++, new Timestamp(primaryBoundaries[0]));
+                    pStatement.setTimestamp(index++, new Timestamp(primaryBoundaries[1]));
+                }
+            }
         }
 
-        ResultSet resultSet = pStatement.executeQuery();
+        long start = System.nanoTime();
+        ResultSet resultSet;
+        try {
+            resultSet = pStatement.executeQuery();
+        } catch (Exception e) {
+            pooled.discardStatement(query);
+
+            throw e;
+        }
+        Metrics.histogram(Metrics.ATTACHMENT_QUERY, Metrics.CUSTOMER_TOOL, getCustomerTool(requests), "source",
+                getSource(requests)).observeSince(start);
 
         String fileName;
         String fileNameOld = "";
         String uid;
         String uidOld = "";
+        String topic;
+        String topicOld = "";
         Boolean isCompressed = Boolean.FALSE;
         Boolean isCompressedOld = Boolean.FALSE;
-        int normalSize = 0;
-        int compressedSize = 0;
         Attachment attachment = null;
-        ByteArrayOutputStream baos;
-        ArrayList<byte[]> segmentsBytes = null;
+        RecordMetrics metrics = null;
+        ArrayList<AttachmentRequest> targets = new ArrayList<AttachmentRequest>();
 
-        while (resultSet.next()) {
-            fileName = resultSet.getString(1);
-            uid = resultSet.getString(2);
+        try {
+            while (resultSet.next()) {
+                fileName = resultSet.getString(1);
+                uid = resultSet.getString(2);
+                topic = resultSet.getString(6);
+
+                if (resultSet.getString(3).equals("t")) {
+                    isCompressed = Boolean.TRUE;
+                } else if (resultSet.getString(3).equals("f")) {
+                    isCompressed = Boolean.FALSE;
+                }
 
-            if (resultSet.getString(4).equals("t")) {
-                isCompressed = Boolean.TRUE;
-            } else if (resultSet.getString(4).equals("f")) {
-                isCompressed = Boolean.FALSE;
-            }
+                if (fileName.equals(fileNameOld) && uid.equals(uidOld) && isCompressed.equals(isCompressedOld) && topic.equals(topicOld)) {
+                    // continue
+                } else {
+                    if (attachment != null) {
+                        closeAttachment(attachment, targets);
+                    }
 
-            if (fileName.equals(fileNameOld) && uid.equals(uidOld) && isCompressed.equals(isCompressedOld)) {
-                // continue
-            } else {
-                if (attachment != null) {
-                    if (isCompressedOld) {
-                        attachment.setBytes(getBytes(segmentsBytes, compressedSize));
-                    } else {
-                        attachment.setBytes(getBytes(segmentsBytes, normalSize));
+                    // requests that still accept attachments from this topic and time, fallback requests only until
+                    // their primary request gets rows (rows of other topics may come first)
+                    targets.clear();
+                    long time = resultSet.getTimestamp(7).getTime();
+                    ArrayList<AttachmentRequest> topicRequests = requestsByTopic.get(topic);
+                    if (topicRequests != null) {
+                        for (AttachmentRequest request : topicRequests) {
+                            if (request.matches(topic, time) && !request.isLimitReached() && !request.isPrimaryFound()) {
+                                targets.add(request);
+                            }
+                        }
                     }
 
-                    attachments.add(attachment);
+                    metrics = targets.isEmpty() ? null : targets.get(0).getMetrics();
+                    attachment = targets.isEmpty() ? null : openAttachment(fileName, uid, isCompressed, resultSet.getLong(4),
+                            resultSet.getLong(5), targets.get(0));
+                }
 
-                    if (logger.isTraceEnabled()) {
-                        logger.trace(getTicketNumber(ticketNumber) + "Attachment: {filename=" + fileNameOld + ", compressed="
-                                + isCompressedOld + "}");
+                if (attachment != null && !attachment.isSaved()) {
+                    try {
+                        long bytes = attachment.writeSegment(resultSet.getBinaryStream(8));
+                        metrics.attachmentBytes.add(bytes);
+                    } catch (Exception e) {
+                        logger.error(getTicketNumber(topic) + "Attachment: " + attachment.getFileName()
+                                + " couldn't be read and will be ignored:", e);
+
+                        attachment.abort();
+                        attachment = null;
                     }
                 }
 
-                attachment = new Attachment(fileName, uid, isCompressed);
-                segmentsBytes = new ArrayList<byte[]>();
-
-                normalSize = resultSet.getInt(5);
-                compressedSize = resultSet.getInt(6);
+                fileNameOld = fileName;
+                uidOld = uid;
+                topicOld = topic;
+                isCompressedOld = isCompressed;
             }
 
-            baos = new ByteArrayOutputStream();
-            baos.write(resultSet.getBytes(3));
-            if (segmentsBytes != null) {
-                segmentsBytes.add(baos.toByteArray());
+            // last attachment if present
+            if (attachment != null) {
+                closeAttachment(attachment, targets);
+                attachment = null;
+            }
+        } finally {
+            if (attachment != null) {
+                attachment.abort();
             }
-            baos.close();
 
-            fileNameOld = fileName;
-            uidOld = uid;
-            isCompressedOld = isCompressed;
+            resultSet.close();
         }
+    }
 
-        // last attachment if present
-        if (attachment != null) {
-            if (isCompressedOld) {
-                attachment.setBytes(getBytes(segmentsBytes, compressedSize));
-            } else {
-                attachment.setBytes(getBytes(segmentsBytes, normalSize));
-            }
+    /**
+     * Pads list of query keys with its last key up to the bucket size.
+     *
+     * @param keys
+     *            Attachment requests used as query keys
+     */
+    private static void pad(ArrayList<AttachmentRequest> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
 
-            attachments.add(attachment);
-            if (segmentsBytes != null) {
-                segmentsBytes.clear();
-            }
+        AttachmentRequest last = keys.get(keys.size() - 1);
 
-            if (logger.isTraceEnabled()) {
-                logger.trace(getTicketNumber(ticketNumber) + "Attachment: {filename=" + fileNameOld + ", size= " + normalSize
-                        + ", compressed=" + isCompressedOld + "}");
-            }
+        for (int i = keys.size(); i < getBucketSize(keys.size()); i++) {
+            keys.add(last);
         }
+    }
 
-        resultSet.close();
-        pStatement.close();
+    /**
+     * Gets number of query keys for given number of values - the next power of two.
+     *
+     * @param count
+     *            Number of values
+     * @return Number of keys
+     */
+    private static int getBucketSize(int count) {
+        int size = 1;
 
-        return attachments;
+        while (size < count) {
+            size *= 2;
+        }
+
+        return size;
     }
 
     /**
-     * Gets byte array with attachment data from all extracted segments without header.
+     * Creates attachment file for the first request it belongs to.
      *
-     * @param byteList
-     *            Byte list of all segments
+     * @param fileName
+     *            Name of the file
+     * @param uid
+     *            UID from DB
+     * @param isCompressed
+     *            TRUE if file is compressed with zlib
      * @param size
-     *            Attachment size (compressed or not)
-     * @return Byte array with attachment data
-     * @throws Exception
+     *            Size of the attachment
+     * @param compressedSize
+     *            Size of compressed attachment
+     * @param request
+     *            Request the attachment is saved for
+     * @return Attachment ready for writing segments or NULL if file couldn't be created
      */
-    private byte[] getBytes(ArrayList<byte[]> byteList, int size) throws Exception {
-        int totalSegmentSize = 0;
+    private Attachment openAttachment(String fileName, String uid, Boolean isCompressed, long size, long compressedSize,
+            AttachmentRequest request) {
+        Attachment attachment = new Attachment(fileName, uid, isCompressed);
+        int number = request.addAttachment(attachment);
+
+        try {
+            attachment.open(request.getDestinationPath(), request.getFileName(), number, size, compressedSize);
+
+            return attachment;
+        } catch (Exception e) {
+            logger.error(getTicketNumber(request.getTopic()) + "Attachment: " + attachment.getFileName()
+                    + " couldn't be read and will be ignored:", e);
+
+            attachment.abort();
 
-        // getting total size of all segments
-        for (int i = 0; i < byteList.size(); i++) {
-            totalSegmentSize += byteList.get(i).length;
+            return null;
         }
-        logger.trace("Attachment SM size: " + totalSegmentSize);
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * Finishes writing of attachment file and saves its copies for all other requests it belongs to. Compressed attachment
+     * is passed to decompression workers, so reading of the next rows continues meanwhile.
+     *
+     * @param attachment
+     *            Attachment with all segments written
+     * @param targets
+     *            Requests the attachment belongs to
+     * @throws InterruptedException
+     */
+    private void closeAttachment(final Attachment attachment, List<AttachmentRequest> targets) throws InterruptedException {
+        final ArrayList<AttachmentRequest> requests = new ArrayList<AttachmentRequest>(targets);
+        final ArrayList<Attachment> copies = new ArrayList<Attachment>();
+        final ArrayList<Integer> numbers = new ArrayList<Integer>();
+
+        // every notification saves its own copy under its own name, copies are numbered in order of rows
+        for (int i = 1; i < requests.size(); i++) {
+            Attachment copy = new Attachment(attachment.getName(), attachment.getUid(), attachment.isCompressed());
+            numbers.add(requests.get(i).addAttachment(copy));
+            copies.add(copy);
+        }
 
-        // extracting valid data (without header) into single byte array
-        for (int i = 0; i < byteList.size(); i++) {
-            int headerSize = 0;
+        if (attachment.isCompressed()) {
+            decompressor.put(new Runnable() {
+                public void run() {
+                    completeAttachment(attachment, requests, copies, numbers);
+                }
+            });
+        } else {
+            completeAttachment(attachment, requests, copies, numbers);
+        }
+    }
 
-            // get the RC type indicator located at 8th byte
-            byte indicatorLength = byteList.get(i)[7];
-            // which means the next 1 byte is the length indicator
-            if (indicatorLength == 0x2D) {
-                headerSize = 9;
+    /**
+     * Saves attachment file and its copies.
+     *
+     * @param attachment
+     *            Attachment with all segments written
+     * @param requests
+     *            Requests the attachment belongs to
+     * @param copies
+     *            Copies of the attachment for all requests except the first one
+     * @param numbers
+     *            Numbers of the copies within their notifications
+     */
+    private void completeAttachment(Attachment attachment, List<AttachmentRequest> requests, List<Attachment> copies,
+            List<Integer> numbers) {
+        try {
+            attachment.close();
+        } catch (Exception e) {
+            logger.error(getTicketNumber(requests.get(0).getTopic()) + "Attachment: " + attachment.getFileName()
+                    + " couldn't be read and will be ignored:", e);
 
-                logger.trace("Header size for segment " + i + ": " + headerSize);
-            } // which means the next 2 bytes are the length indicator
-            else if (indicatorLength == 0x2E) {
-                headerSize = 10;
+            attachment.abort();
 
-                logger.trace("Header size for segment + " + i + ": " + headerSize);
+            for (Attachment copy : copies) {
+                copy.abort();
             }
 
-            logger.trace("Segment " + i + " size: " + (byteList.get(i).length - headerSize));
+            return;
+        }
+
+        // attachment found in store is not decompressed
+        if (attachment.isCompressed() && attachment.getInflateNanos() > 0) {
+            requests.get(0).getMetrics().inflate.observe(attachment.getInflateNanos());
+        }
 
-            baos.write(byteList.get(i), headerSize, byteList.get(i).length - headerSize);
+        if (logger.isTraceEnabled()) {
+            logger.trace(getTicketNumber(requests.get(0).getTopic()) + "Attachment: {filename=" + attachment.getName() + ", size= "
+                    + attachment.getSize() + ", compressed=" + attachment.isCompressed() + "}");
         }
 
-        byte[] result = baos.toByteArray();
-        baos.close();
+        for (int i = 0; i < copies.size(); i++) {
+            AttachmentRequest request = requests.get(i + 1);
+            Attachment copy = copies.get(i);
 
-        return result;
+            try {
+                copy.saveCopy(attachment, request.getDestinationPath(), request.getFileName(), numbers.get(i));
+            } catch (Exception e) {
+                logger.error(getTicketNumber(request.getTopic()) + "Attachment: " + copy.getFileName()
+                        + " couldn't be read and will be ignored:", e);
+
+                copy.abort();
+            }
+        }
+    }
+
+    /**
+     * Removes all records scheduled for removal. Claimed records are removed in the claim transaction, which releases the
+     * rest of claimed records.
+     */
+    public void flushRemovals() {
+        if (Configuration.claimBatchSize > 0) {
+            completeClaim();
+        } else {
+            remover.flush();
+        }
+    }
+
+    /**
+     * Gets number of records waiting for removal.
+     *
+     * @return Number of records
+     */
+    public int getPendingRemovals() {
+        synchronized (claimedRemovals) {
+            return remover.getPendingCount() + claimedRemovals.size();
+        }
     }
 
     /**
-     * Removes eventout record based on unique evsysseq value.
+     * Schedules removal of eventout record based on unique evsysseq value. Record is removed with the next batch, so
+     * notification file must be already saved on disk.
      *
      * @param evSysSeq
      *            evsysseq key value
      * @throws Exception
      */
-    public synchronized void removeRecordFromEventOut(String evSysSeq) throws Exception {
-        PreparedStatement pStatement = connection.prepareStatement("DELETE FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'page'");
-        pStatement.setString(1, evSysSeq);
-        pStatement.executeUpdate();
+    public void removeRecordFromEventOut(String evSysSeq) throws Exception {
+        if (Configuration.claimBatchSize > 0) {
+            synchronized (claimedRemovals) {
+                claimedRemovals.add(evSysSeq);
+            }
+        } else {
+            remover.remove(evSysSeq);
+        }
+    }
+
+    /**
+     * Removes processed claimed records and commits claim transaction, so locks of all claimed records are released.
+     * Records are processed again if the claim can't be committed.
+     */
+    private void completeClaim() {
+        ArrayList<String> evSysSeqs;
+
+        synchronized (claimedRemovals) {
+            evSysSeqs = new ArrayList<String>(claimedRemovals);
+            claimedRemovals.clear();
+        }
+
+        // delivered records are journaled before they leave eventout
+        Journal.flush();
+
+        try {
+            long start = System.nanoTime();
+            PreparedStatement pStatement = connection.prepareStatement("DELETE FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'page'");
+
+            try {
+                for (String evSysSeq : evSysSeqs) {
+                    pStatement.setString(1, evSysSeq);
+                    pStatement.addBatch();
+                }
+
+                if (!evSysSeqs.isEmpty()) {
+                    pStatement.executeBatch();
+                }
+
+                connection.commit();
+            } finally {
+                pStatement.close();
+            }
+
+            if (!evSysSeqs.isEmpty()) {
+                Metrics.histogram(Metrics.DELETE_COMMIT).observeSince(start);
+                Metrics.counter(Metrics.RECORDS_REMOVED).add(evSysSeqs.size());
+            }
+        } catch (Throwable e) {
+            logger.error("Unable to remove " + evSysSeqs.size() + " claimed record(s) from eventout: evsysseq = " + evSysSeqs, e);
+
+            try {
+                connection.rollback();
+            } catch (Throwable ex) {
+                logger.error("Unable to release claimed records", ex);
+            }
+
+            return;
+        }
+
+        for (String evSysSeq : evSysSeqs) {
+            LogSF.info(logger, "Record removed: evsysseq = {}", evSysSeq);
+        }
+    }
+
+    /**
+     * Removes eventout records based on unique evsysseq values in one batch and one transaction.
+     *
+     * @param evSysSeqs
+     *            evsysseq key values
+     * @throws Exception
+     */
+    public void removeRecordsFromEventOut(List<String> evSysSeqs) throws Exception {
+        // delivered records are journaled before they leave eventout
+        Journal.flush();
+
+        PooledConnection pooled = pool.getConnection();
+        String query = "DELETE FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'page'";
+
+        try {
+            PreparedStatement pStatement = pooled.prepareStatement(query);
+
+            try {
+                long start = System.nanoTime();
+
+                for (String evSysSeq : evSysSeqs) {
+                    pStatement.setString(1, evSysSeq);
+                    pStatement.addBatch();
+                }
+
+                pStatement.executeBatch();
+                pooled.commit();
+
+                Metrics.histogram(Metrics.DELETE_COMMIT).observeSince(start);
+                Metrics.counter(Metrics.RECORDS_REMOVED).add(evSysSeqs.size());
+            } catch (Exception e) {
+                pStatement.clearBatch();
+                pooled.discardStatement(query);
+                pooled.rollback();
+
+                throw e;
+            }
+        } finally {
+            pool.releaseConnection(pooled);
+        }
+
+        for (String evSysSeq : evSysSeqs) {
+            LogSF.info(logger, "Record removed: evsysseq = {}", evSysSeq);
+        }
+    }
+
+    /**
+     * Gets ticket source shared by all requests for metrics.
+     *
+     * @param requests
+     *            Attachment requests
+     * @return Ticket source or "mixed" if requests are for different sources
+     */
+    private String getSource(List<AttachmentRequest> requests) {
+        String source = requests.get(0).getSource();
+
+        for (AttachmentRequest request : requests) {
+            if (source == null ? request.getSource() != null : !source.equals(request.getSource())) {
+                return "mixed";
+            }
+        }
+
+        return source;
+    }
+
+    /**
+     * Gets customer tool shared by all requests for metrics.
+     *
+     * @param requests
+     *            Attachment requests
+     * @return Customer tool name or NULL if requests are for different customer tools
+     */
+    private String getCustomerTool(List<AttachmentRequest> requests) {
+        Tenant tenant = requests.get(0).getTenant();
 
-        connection.commit();
-        pStatement.close();
+        for (AttachmentRequest request : requests) {
+            if (request.getTenant() != tenant) {
+                return null;
+            }
+        }
 
-        logger.info("Record removed: evsysseq = " + evSysSeq);
+        return tenant.getName();
     }
 
     /**
@@ -0,0 +1,94 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Class that represents data source for database given by JDBC URL, connections are opened with {@link DriverManager}.
+ * Used when database is not HPSC Oracle instance configured with host, port and SID (e.g. local H2 stand-in).
+ *
+ * @author sgacka
+ */
+public class DriverDataSource implements DataSource {
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    /**
+     * DriverDataSource constructor.
+     *
+     * @param url
+     *            JDBC URL
+     * @param user
+     *            Database user name
+     * @param password
+     *            Database user password
+     */
+    public DriverDataSource(String url, String user, String password) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * Opens connection as configured user.
+     *
+     * @return Database connection
+     * @throws SQLException
+     */
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    /**
+     * Opens connection as given user.
+     *
+     * @param username
+     *            Database user name
+     * @param password
+     *            Database user password
+     * @return Database connection
+     * @throws SQLException
+     */
+    public Connection getConnection(String username, String password) throws SQLException {
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    public PrintWriter getLogWriter() {
+        return DriverManager.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) {
+        DriverManager.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("java.util.logging is not used");
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
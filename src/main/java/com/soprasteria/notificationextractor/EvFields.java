@@ -0,0 +1,335 @@
+package com.soprasteria.notificationextractor;
+
+/**
+ * Class that represents notification extracted from evFields. Text is scanned once, fields are located with index
+ * arithmetic and message body is kept as a range of the original text.
+ *
+ * @author sgacka
+ */
+public class EvFields {
+
+    private static final String END = "$end";
+    private static final String TEXT_START = "telalert";
+
+    private final String text;
+    private final int headerStart;
+    private final int headerEnd;
+    private String body;
+    private int bodyStart;
+    private int bodyEnd;
+    private Boolean isCrLf;
+    private String ticketSource;
+    private Boolean withAttachments;
+    private String ticketNumber;
+    private String destinationPath;
+    private String fileName;
+
+    /**
+     * EvFields constructor.
+     *
+     * @param text
+     *            evFields content
+     * @param headerStart
+     *            Beginning of the notification (first line)
+     * @param headerEnd
+     *            End of the first line
+     */
+    private EvFields(String text, int headerStart, int headerEnd) {
+        this.text = text;
+        this.headerStart = headerStart;
+        this.headerEnd = headerEnd;
+        this.withAttachments = Boolean.FALSE;
+    }
+
+    /**
+     * Parses evFields content. Notification is located between eight separator characters after last "telalert" and
+     * last "$end" string, its first line contains basic notification info separated with "||".
+     *
+     * @param text
+     *            evFields content
+     * @return Parsed notification or NULL if evFields has invalid format
+     * @throws Exception
+     */
+    public static EvFields parse(String text) throws Exception {
+        // getting end of the message (evfields)
+        int end = text.lastIndexOf(END);
+        if (end == -1) {
+            return null;
+        }
+
+        // getting beginnig of the message (evfields)
+        int pos = end < TEXT_START.length() ? -1 : text.lastIndexOf(TEXT_START, end - TEXT_START.length());
+        if (pos == -1 || pos + TEXT_START.length() >= end) {
+            throw new StringIndexOutOfBoundsException("Beginning of the notification not found");
+        }
+
+        char separator = text.charAt(pos + TEXT_START.length());
+
+        // looking for the beginning of the notification
+        for (int i = 0; i < 8; i++) {
+            int next = text.indexOf(separator, pos);
+
+            if (next != -1 && next < end) {
+                pos = next + 1;
+            }
+        }
+
+        // first line ends with the first line break
+        int lineEnd = pos;
+        while (lineEnd < end && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+            lineEnd++;
+        }
+
+        if (pos == end) {
+            throw new IllegalArgumentException("Notification is empty");
+        }
+
+        EvFields evFields = new EvFields(text, pos, lineEnd);
+        evFields.setBody(pos, lineEnd, end);
+        evFields.parseHeader();
+
+        return evFields;
+    }
+
+    /**
+     * Sets message body - notification without its first line, with line endings changed to DOS format.
+     *
+     * @param start
+     *            Beginning of the notification
+     * @param lineEnd
+     *            End of the first line
+     * @param end
+     *            End of the notification
+     */
+    private void setBody(int start, int lineEnd, int end) {
+        Boolean isRemoved = lineEnd < end && text.charAt(lineEnd) == '\n';
+        int from = isRemoved ? lineEnd + 1 : start;
+
+        if (indexOfFirstLine(from, end) == -1) {
+            // body is a range of evFields, line endings are changed when message is written
+            body = text;
+            bodyStart = isRemoved ? lineEnd + 1 : start;
+            bodyEnd = end;
+            isCrLf = Boolean.TRUE;
+        } else {
+            // first line repeated within message - every copy of it is removed
+            String firstLine = text.substring(start, lineEnd);
+            body = text.substring(start, end).replace("\n", "\r\n").replace(firstLine + "\r\n", "");
+            bodyStart = 0;
+            bodyEnd = body.length();
+            isCrLf = Boolean.FALSE;
+        }
+    }
+
+    /**
+     * Looks for first line followed by line feed in given range of evFields.
+     *
+     * @param from
+     *            Beginning of the range
+     * @param end
+     *            End of the range
+     * @return Position of the first line or -1 if not found
+     */
+    private int indexOfFirstLine(int from, int end) {
+        int length = headerEnd - headerStart;
+        char first = text.charAt(headerStart);
+
+        for (int i = text.indexOf(first, from); i != -1 && i + length < end; i = text.indexOf(first, i + 1)) {
+            if (text.charAt(i + length) == '\n' && text.regionMatches(i, text, headerStart, length)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Parses first line into ticket source, attachment info, ticket number and destination path. Empty tokens are
+     * skipped.
+     *
+     * @throws Exception
+     */
+    private void parseHeader() throws Exception {
+        int token = 0;
+        int pos = headerStart;
+
+        while (pos < headerEnd) {
+            if (text.charAt(pos) == '|') {
+                pos++;
+
+                continue;
+            }
+
+            int tokenEnd = text.indexOf('|', pos);
+            if (tokenEnd == -1 || tokenEnd > headerEnd) {
+                tokenEnd = headerEnd;
+            }
+
+            switch (token) {
+            case 0:
+                // first token - ticket source, word characters only
+                StringBuilder sb = new StringBuilder(tokenEnd - pos);
+                for (int i = pos; i < tokenEnd; i++) {
+                    char c = text.charAt(i);
+
+                    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
+                        sb.append(c);
+                    }
+                }
+                ticketSource = sb.toString();
+
+                break;
+            case 1:
+                // second token - attachment info
+                // if there is AA - there are attachments available
+                // if there is NA or something else - there are no attachments available
+                withAttachments = tokenEnd - pos == 2 && text.startsWith("AA", pos);
+
+                break;
+            case 2:
+                // third token - ticket number
+                ticketNumber = text.substring(pos, tokenEnd);
+
+                break;
+            case 3:
+                // fourth token - destination path for saving this message
+                destinationPath = text.substring(pos, tokenEnd);
+                fileName = getFileName(destinationPath);
+
+                break;
+            default:
+                // just continue :-)
+                break;
+            }
+
+            token++;
+            pos = tokenEnd;
+        }
+
+        if (destinationPath == null) {
+            throw new IllegalArgumentException("Destination path not found in the first line: " + getFirstLine());
+        }
+    }
+
+    /**
+     * Gets last non-empty part of the path.
+     *
+     * @param path
+     *            Destination path
+     * @return File name or NULL if path has no file name
+     */
+    private static String getFileName(String path) {
+        int end = path.length();
+
+        while (end > 0 && path.charAt(end - 1) == '\\') {
+            end--;
+        }
+
+        if (end == 0) {
+            return null;
+        }
+
+        return path.substring(path.lastIndexOf('\\', end - 1) + 1, end);
+    }
+
+    /**
+     * Gets text that contains message body.
+     *
+     * @return Text, body is its range from {@link #getBodyStart()} to {@link #getBodyEnd()}
+     */
+    public String getBodyText() {
+        return body;
+    }
+
+    /**
+     * Gets beginning of the message body.
+     *
+     * @return Position in body text
+     */
+    public int getBodyStart() {
+        return bodyStart;
+    }
+
+    /**
+     * Gets end of the message body.
+     *
+     * @return Position in body text
+     */
+    public int getBodyEnd() {
+        return bodyEnd;
+    }
+
+    /**
+     * Checks if line feeds of the body must be changed to CRLF when message is written.
+     *
+     * @return TRUE if body has original line endings
+     */
+    public Boolean isCrLf() {
+        return isCrLf;
+    }
+
+    /**
+     * Gets message body as string, for logger.
+     *
+     * @return Message body with DOS line endings
+     */
+    public String getBody() {
+        String result = body.substring(bodyStart, bodyEnd);
+
+        return isCrLf ? result.replace("\n", "\r\n") : result;
+    }
+
+    /**
+     * Gets first line of the notification, for logger.
+     *
+     * @return First line
+     */
+    public String getFirstLine() {
+        return text.substring(headerStart, headerEnd);
+    }
+
+    /**
+     * Gets ticket source.
+     *
+     * @return Ticket source (word characters only)
+     */
+    public String getTicketSource() {
+        return ticketSource;
+    }
+
+    /**
+     * Checks if attachments are available.
+     *
+     * @return TRUE if notification has attachments
+     */
+    public Boolean withAttachments() {
+        return withAttachments;
+    }
+
+    /**
+     * Gets ticket number.
+     *
+     * @return Ticket number
+     */
+    public String getTicketNumber() {
+        return ticketNumber;
+    }
+
+    /**
+     * Gets destination path for saving this message.
+     *
+     * @return Destination path
+     */
+    public String getDestinationPath() {
+        return destinationPath;
+    }
+
+    /**
+     * Gets file name from destination path.
+     *
+     * @return File name
+     */
+    public String getFileName() {
+        return fileName;
+    }
+}
@@ -0,0 +1,149 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.EOFException;
+import java.sql.Clob;
+
+/**
+ * Class that reads evFields CLOB from its end in chunks. Reading stops when last "$end" and last "telalert" before it are
+ * found, so only the part with notification is transferred from database and kept in memory.
+ *
+ * @author sgacka
+ */
+public class EvFieldsReader {
+
+    private static final String END = "$end";
+    private static final String TEXT_START = "telalert";
+
+    private final Clob clob;
+    private final int chunkSize;
+    private char[] buffer;
+    // loaded characters are buffer[offset, offset + length) and start at position (0-based) in CLOB
+    private int offset;
+    private int length;
+    private long position;
+
+    /**
+     * EvFieldsReader constructor.
+     *
+     * @param clob
+     *            evFields CLOB
+     * @param chunkSize
+     *            Number of characters read in one round trip
+     */
+    public EvFieldsReader(Clob clob, int chunkSize) {
+        this.clob = clob;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads part of evFields from last "telalert" (before last "$end") to last "$end" inclusive. Parsing it gives the
+     * same result as parsing whole evFields.
+     *
+     * @return Notification part of evFields, whole evFields if "telalert" is not found or evFields end (without "$end"
+     *         string) if "$end" is not found
+     * @throws Exception
+     */
+    public String read() throws Exception {
+        position = clob.length();
+        buffer = new char[(int) Math.min(position, chunkSize)];
+        offset = buffer.length;
+        length = 0;
+
+        int end = -1;
+
+        while (position > 0) {
+            int size = readChunk();
+            int from;
+
+            if (end == -1) {
+                end = lastIndexOf(END, length - END.length());
+
+                if (end != -1) {
+                    // characters after "$end" are not needed
+                    length = end + END.length();
+                } else if (length > END.length() - 1) {
+                    // "$end" may start in the previous chunk and end within these characters
+                    length = END.length() - 1;
+                }
+
+                from = end - TEXT_START.length();
+            } else {
+                // "telalert" starting in previously loaded characters was already searched
+                end += size;
+                from = Math.min(end - TEXT_START.length(), size - 1);
+            }
+
+            if (end != -1) {
+                int start = lastIndexOf(TEXT_START, from);
+
+                if (start != -1) {
+                    return new String(buffer, offset + start, length - start);
+                }
+            }
+        }
+
+        return new String(buffer, offset, length);
+    }
+
+    /**
+     * Reads previous chunk of CLOB in front of already loaded characters.
+     *
+     * @return Number of characters read
+     * @throws Exception
+     */
+    private int readChunk() throws Exception {
+        int size = (int) Math.min(position, chunkSize);
+
+        if (offset < size) {
+            // more space is needed in front of loaded characters
+            char[] grown = new char[Math.max(buffer.length * 2, length + size)];
+            System.arraycopy(buffer, offset, grown, grown.length - length, length);
+            buffer = grown;
+            offset = grown.length - length;
+        } else if (offset + length < buffer.length) {
+            // loaded characters are moved back to the end of buffer when end of CLOB was dropped
+            System.arraycopy(buffer, offset, buffer, buffer.length - length, length);
+            offset = buffer.length - length;
+        }
+
+        position -= size;
+        offset -= size;
+        length += size;
+
+        // one round trip per chunk, supported by all drivers (unlike character stream of CLOB part)
+        String chunk = clob.getSubString(position + 1, size);
+
+        if (chunk.length() < size) {
+            throw new EOFException("Unexpected end of evFields at position " + (position + chunk.length()));
+        }
+
+        chunk.getChars(0, size, buffer, offset);
+
+        return size;
+    }
+
+    /**
+     * Looks for last occurrence of string in loaded characters.
+     *
+     * @param str
+     *            String to find
+     * @param fromIndex
+     *            Maximum index (relative to loaded characters) of the occurrence
+     * @return Index relative to loaded characters or -1 if not found
+     */
+    private int lastIndexOf(String str, int fromIndex) {
+        for (int i = Math.min(fromIndex, length - str.length()); i >= 0; i--) {
+            int j = 0;
+
+            while (j < str.length() && buffer[offset + i + j] == str.charAt(j)) {
+                j++;
+            }
+
+            if (j == str.length()) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
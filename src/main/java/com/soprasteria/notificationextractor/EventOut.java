@@ -1,54 +1,194 @@
 package com.soprasteria.notificationextractor;
 
-import java.util.ArrayList;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
 
 /**
- * Class that represents Eventout queue in HPSC.
+ * Class that represents Eventout queue in HPSC. Queue is read with forward-only cursor, records are handed out one by one
+ * as they are fetched from database. In clustered mode only a batch of records is read and claimed (locked) for this
+ * instance.
  *
  * @author sgacka
  */
 public class EventOut {
 
-    private ArrayList<EventOutRecord> eventout;
+    private ResultSet eventout;
     private final Database db;
+    private final int fetchSize;
+    private final String watermark;
+    private final int claimSize;
+    private int recordsCount;
+    private String lastEvSysSeq;
+    /**
+     * Length of zero-padded evsysseq values, 0 if no such value was read
+     */
+    private int paddedLength;
+    private Boolean isOrdered = Boolean.TRUE;
+    private static final Logger logger = Logger.getLogger(EventOut.class);
+    private static final Metrics.Counter recordsRead = Metrics.counter(Metrics.RECORDS_READ);
+    private static final Metrics.Counter recordsDelivered = Metrics.counter(Metrics.RECORDS_SKIPPED, "reason", "delivered");
 
     /**
      * EventOut constructor.
      *
      * @param db
      *            Database object
+     * @param fetchSize
+     *            Number of rows transferred from database in one round trip
+     * @param watermark
+     *            Only records with evsysseq above this value are read, all records if NULL
      */
-    public EventOut(Database db) {
-        this.eventout = new ArrayList<EventOutRecord>();
+    public EventOut(Database db, int fetchSize, String watermark) {
+        this(db, fetchSize, watermark, 0);
+    }
+
+    /**
+     * EventOut constructor.
+     *
+     * @param db
+     *            Database object
+     * @param fetchSize
+     *            Number of rows transferred from database in one round trip
+     * @param watermark
+     *            Only records with evsysseq above this value are read, all records if NULL
+     * @param claimSize
+     *            Number of records claimed for this instance, records are read without claiming if 0
+     */
+    public EventOut(Database db, int fetchSize, String watermark, int claimSize) {
         this.db = db;
+        this.fetchSize = fetchSize;
+        this.watermark = watermark;
+        this.claimSize = claimSize;
+        this.recordsCount = 0;
     }
 
     /**
-     * Process records in eventout queue - page event type.
+     * Opens cursor over records in eventout queue - page event type.
      *
      * @throws Exception
      */
     public void getEventOut() throws Exception {
-        eventout = db.getEventOutRecords();
+        if (claimSize > 0) {
+            eventout = db.claimEventOutRecords(claimSize, watermark);
+        } else {
+            eventout = db.getEventOutRecords(fetchSize, watermark);
+        }
+    }
+
+    /**
+     * Gets next record from eventout queue.
+     *
+     * @return Eventout record or NULL if there are no more records
+     * @throws Exception
+     */
+    public EventOutRecord getNextEventOutRecord() throws Exception {
+        while (eventout != null && (claimSize == 0 || recordsCount < claimSize) && eventout.next()) {
+            recordsCount++;
+            recordsRead.increment();
+
+            String evSysSeq = db.getEvSysSeq(eventout);
+
+            checkOrder(evSysSeq);
+            if (lastEvSysSeq == null || Database.compareEvSysSeq(evSysSeq, lastEvSysSeq) > 0) {
+                lastEvSysSeq = evSysSeq;
+            }
+
+            if (!isProcessed(evSysSeq)) {
+                return db.getEventOutRecord(eventout);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks if record was processed already according to journal. Delivered record which is still in eventout is only
+     * removed (in read-write mode).
+     *
+     * @param evSysSeq
+     *            Unique event key
+     * @return TRUE if record should be skipped
+     * @throws Exception
+     */
+    private Boolean isProcessed(String evSysSeq) throws Exception {
+        if (!Journal.isDelivered(evSysSeq)) {
+            return Boolean.FALSE;
+        }
+
+        recordsDelivered.increment();
+        LogSF.debug(logger, "Record: {} - notification already delivered", evSysSeq);
+
+        if (!Configuration.isReadOnly) {
+            db.removeRecordFromEventOut(evSysSeq);
+        }
+
+        return Boolean.TRUE;
     }
 
     /**
-     * Gets number of records in eventout.
+     * Checks if evsysseq values can be ordered numerically - they must be numbers, either without leading zeros or all
+     * padded to the same width. Otherwise records above the highest evsysseq can't be found, so it is not given as
+     * watermark.
+     *
+     * @param evSysSeq
+     *            evsysseq value
+     */
+    private void checkOrder(String evSysSeq) {
+        if (!isOrdered) {
+            return;
+        }
+
+        if (evSysSeq.length() > 1 && evSysSeq.charAt(0) == '0') {
+            if (paddedLength == 0) {
+                paddedLength = evSysSeq.length();
+            }
+        }
+
+        if (!Database.isOrderedEvSysSeq(evSysSeq) || (paddedLength > 0 && evSysSeq.length() != paddedLength)) {
+            isOrdered = Boolean.FALSE;
+            logger.warn("Record: " + evSysSeq + " - evsysseq values can't be ordered numerically, eventout is read from start");
+        }
+    }
+
+    /**
+     * Gets number of records read from eventout so far.
      *
      * @return Number of records
      */
     public int getRecordsCount() {
-        return eventout.size();
+        return recordsCount;
     }
 
     /**
-     * Gets eventout record from list.
+     * Gets the highest evsysseq read from eventout so far.
      *
-     * @param position
-     *            Position on list
-     * @return Eventout record
+     * @return evsysseq value or NULL if no records were read or evsysseq values can't be ordered
+     */
+    public String getLastEvSysSeq() {
+        return isOrdered ? lastEvSysSeq : null;
+    }
+
+    /**
+     * Closes cursor over eventout queue.
      */
-    public EventOutRecord getEventOutRecord(int position) {
-        return eventout.get(position);
+    public void close() {
+        if (eventout != null) {
+            try {
+                Statement statement = eventout.getStatement();
+
+                eventout.close();
+                statement.close();
+            } catch (Throwable e) {
+                logger.error("Unable to close eventout cursor", e);
+            } finally {
+                eventout = null;
+            }
+        }
+
+        if (watermark == null || recordsCount > 0) {
+            logger.info("Total eventout records found: " + recordsCount);
+        }
     }
 }
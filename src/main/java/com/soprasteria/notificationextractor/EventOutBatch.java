@@ -0,0 +1,155 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents batch of eventout records processed together. Attachments of all records in the batch (and
+ * phases of line items) are retrieved with one query.
+ *
+ * @author sgacka
+ */
+public class EventOutBatch implements Runnable {
+
+    private final Database database;
+    private final List<EventOutRecord> records;
+    private static final Logger logger = Logger.getLogger(EventOutBatch.class);
+
+    /**
+     * EventOutBatch constructor.
+     *
+     * @param database
+     *            Database object
+     * @param records
+     *            Eventout records
+     */
+    public EventOutBatch(Database database, List<EventOutRecord> records) {
+        this.database = database;
+        this.records = records;
+    }
+
+    /**
+     * Run method for ThreadExecutor. Executes parsing of all records, attachments retrieval and saving.
+     */
+    public void run() {
+        ArrayList<EventOutRecord> parsed = new ArrayList<EventOutRecord>();
+        ArrayList<EventOutRecord> withAttachments = new ArrayList<EventOutRecord>();
+
+        try {
+            // parsing
+            for (EventOutRecord record : records) {
+                try {
+                    if (record.parseRecord()) {
+                        if (record.prepareAttachmentRequest() != null) {
+                            withAttachments.add(record);
+                        }
+
+                        parsed.add(record);
+                    }
+                } catch (Throwable e) {
+                    logger.error(getRecordNumber(record) + "Unable to parse eventout record:\r\n", e);
+                }
+            }
+
+            // attachments
+            if (!withAttachments.isEmpty()) {
+                try {
+                    getAttachments(database, withAttachments);
+                } catch (Throwable e) {
+                    // records stay in eventout and will be processed again
+                    for (EventOutRecord record : withAttachments) {
+                        logger.error(getRecordNumber(record) + "Unable to retrieve attachments:\r\n", e);
+                    }
+
+                    parsed.removeAll(withAttachments);
+                }
+            }
+
+            // saving
+            for (EventOutRecord record : parsed) {
+                try {
+                    record.saveRecord();
+                } catch (Throwable e) {
+                    logger.error(getRecordNumber(record) + "Unable to save notification:\r\n", e);
+                }
+            }
+        } finally {
+            for (EventOutRecord record : records) {
+                record.close();
+            }
+        }
+    }
+
+    /**
+     * Gets attachments of all records with one query. Line items are looked up by their phase number as well, phase
+     * attachments are used only if line item has no attachments.
+     *
+     * @param database
+     *            Database object
+     * @param withAttachments
+     *            Parsed records with prepared attachment requests
+     * @throws Exception
+     */
+    public static void getAttachments(Database database, List<EventOutRecord> withAttachments) throws Exception {
+        ArrayList<String> lineItems = new ArrayList<String>();
+
+        for (EventOutRecord record : withAttachments) {
+            if (record.isLineItem()) {
+                lineItems.add(record.getTicketNumber());
+            }
+        }
+
+        // phase numbers of all line items are resolved at once
+        HashMap<String, String> phaseNumbers = lineItems.isEmpty() ? new HashMap<String, String>()
+                : database.getLineItemPhaseNums(lineItems);
+
+        ArrayList<AttachmentRequest> requests = new ArrayList<AttachmentRequest>();
+        ArrayList<AttachmentRequest> fallbacks = new ArrayList<AttachmentRequest>();
+
+        for (EventOutRecord record : withAttachments) {
+            AttachmentRequest request = record.getAttachmentRequest();
+            AttachmentRequest fallback = null;
+
+            requests.add(request);
+
+            String phaseNumber = phaseNumbers.get(record.getTicketNumber());
+            if (record.isLineItem() && phaseNumber != null && !phaseNumber.isEmpty()) {
+                fallback = request.fallback(phaseNumber);
+                requests.add(fallback);
+            }
+
+            fallbacks.add(fallback);
+        }
+
+        database.getAttachments(requests);
+
+        for (int i = 0; i < withAttachments.size(); i++) {
+            EventOutRecord record = withAttachments.get(i);
+            AttachmentRequest fallback = fallbacks.get(i);
+
+            if (fallback == null) {
+                continue;
+            }
+
+            if (record.getAttachmentRequest().getAttachments().isEmpty()) {
+                record.setAttachmentRequest(fallback);
+            } else if (!fallback.getAttachments().isEmpty()) {
+                // phase attachments read before line item rows are not used
+                fallback.discardAttachments();
+            }
+        }
+    }
+
+    /**
+     * Gets formatted eventout record number for logger.
+     *
+     * @param record
+     *            Eventout record
+     * @return Formatted eventout record number
+     */
+    static String getRecordNumber(EventOutRecord record) {
+        return "<" + record.getEvSysSeq() + "> -> ";
+    }
+}
@@ -1,13 +1,11 @@
 package com.soprasteria.notificationextractor;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.StringReader;
 import java.sql.Clob;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.StringTokenizer;
+import java.util.Collections;
+import org.apache.log4j.LogSF;
 import org.apache.log4j.Logger;
 
 /**
@@ -21,8 +19,9 @@ public class EventOutRecord implements Runnable {
     private final Calendar evTime;
     private final String evSysSeq;
     private final Database database;
-    private String message;
-    private ArrayList<Attachment> attachments;
+    private final long readNanos;
+    private EvFields message;
+    private AttachmentRequest attachmentRequest;
     private String notificationTime;
     private String ticketSource;
     private String ticketNumber;
@@ -30,6 +29,8 @@ public class EventOutRecord implements Runnable {
     private String attachmentNames;
     private String fileName;
     private String destinationPath;
+    private Tenant tenant;
+    private RecordMetrics metrics;
     private static final Logger logger = Logger.getLogger(EventOutRecord.class);
 
     /**
@@ -50,148 +51,122 @@ public class EventOutRecord implements Runnable {
         this.evTime.setTimeInMillis(evTime);
         this.evSysSeq = evSysSeq;
         this.database = database;
+        this.readNanos = System.nanoTime();
         this.withAttachments = Boolean.FALSE;
-        this.attachments = new ArrayList<Attachment>();
         this.attachmentNames = "";
     }
 
     /**
      * Parses content of the blob evFields.
      *
+     * @return TRUE if record contains complete notification for configured customer tool
      * @throws Exception
      */
-    public void parseRecord() throws Exception {
-        String temp = evFields.getSubString(1, (int) evFields.length());
+    public Boolean parseRecord() throws Exception {
+        long start = System.nanoTime();
+        String temp = database.getEvFields(evFields);
+        long read = System.nanoTime();
 
         if (logger.isTraceEnabled()) {
-            logger.trace(getRecordNumber() + "evFields content:\r\n" + temp);
+            logger.trace(getRecordNumber() + "evFields notification part:\r\n" + temp);
         }
 
-        // getting end of the message (evfields)
-        // it should be after last "$end" string in evFields
-        int pos = temp.lastIndexOf("$end");
-        if (pos != -1) {
-            temp = temp.substring(0, pos);
-
-            // getting beginnig of the message (evfields)
-            // it should be after eight separator characters after "telalert" in evFields
-            String textStart = "telalert";
-
-            pos = temp.lastIndexOf(textStart);
-            temp = temp.substring(pos, temp.length());
-
-            String separator = String.valueOf(temp.charAt(textStart.length()));
-
-            // looking for the beginning of the notification
-            for (int i = 0; i < 8; i++) {
-                pos = temp.indexOf(separator) + 1;
-                temp = temp.substring(pos, temp.length());
-            }
-
-            // changing line ending to DOS format
-            message = temp.replace("\n", "\r\n");
+        // notification is located in evFields with single pass, without intermediate strings
+        EvFields parsed = EvFields.parse(temp);
+        if (parsed != null) {
+            message = parsed;
+            ticketSource = parsed.getTicketSource();
+            withAttachments = parsed.withAttachments();
+            ticketNumber = parsed.getTicketNumber();
+            destinationPath = parsed.getDestinationPath();
+            fileName = parsed.getFileName();
 
             if (logger.isTraceEnabled()) {
-                logger.trace(getRecordNumber() + "Final message:\r\n" + message);
+                logger.trace(getRecordNumber() + "First line:\r\n" + parsed.getFirstLine());
+                logger.trace(getRecordNumber() + "Final message:\r\n" + parsed.getBody());
             }
 
-            // getting first line of the message to get basic notification info
-            BufferedReader reader = new BufferedReader(new StringReader(temp));
-            temp = reader.readLine();
-
-            if (logger.isTraceEnabled()) {
-                logger.trace(getRecordNumber() + "First line:\r\n" + temp);
-            }
+            // checking customer tool name
+            tenant = Tenant.route(destinationPath);
+            metrics = tenant != null ? tenant.getMetrics(ticketSource) : RecordMetrics.forOtherInterface(ticketSource);
+            metrics.clobRead.observe(read - start);
+            metrics.parse.observeSince(read);
 
-            // removing first line that is now obsolete
-            message = message.replace(temp + "\r\n", "");
-
-            // parsing first line into tokens
-            StringTokenizer st1 = new StringTokenizer(temp, "||");
-
-            pos = 0;
-            destinationPath = null;
-
-            while (st1.hasMoreTokens()) {
-                switch (pos) {
-                case 0:
-                    // first token - ticket source
-                    ticketSource = st1.nextToken().replaceAll("\\W", "");
-
-                    break;
-                case 1:
-                    // second token - attachment info
-                    // if there is AA - there are attachments available
-                    // if there is NA or something else - there are no attachments available
-                    String attachment = st1.nextToken();
-                    if (attachment.equals("AA")) {
-                        withAttachments = Boolean.TRUE;
-                    } else {
-                        withAttachments = Boolean.FALSE;
-                    }
+            if (tenant != null) {
+                destinationPath = tenant.getDestinationPath(destinationPath, fileName);
 
-                    break;
-                case 2:
-                    // third token - ticket number
-                    ticketNumber = st1.nextToken();
+                // checking if message is complete
+                if (!ticketSource.contains("Thismessagedidnotprovideenougharguments")) {
+                    Configuration.increaseNotificationsCount();
+                    metrics.notifications.increment();
 
-                    break;
-                case 3:
-                    // fourth token - destination path for saving this message
-                    destinationPath = st1.nextToken();
-                    fileName = null;
+                    return Boolean.TRUE;
+                } else {
+                    metrics.ignored.increment();
+                    tenant.getLogger().warn("Record: " + getRecordNumber() + "Record ignored - message is incomplete.");
+                }
+            } else {
+                metrics.ignored.increment();
+                LogSF.info(logger, "Record: <{}> -> Record ignored - message for another interface.", evSysSeq);
+            }
+        } else {
+            Metrics.histogram(Metrics.CLOB_READ).observe(read - start);
+            Metrics.counter(Metrics.RECORDS_IGNORED, "reason", "format").increment();
+            LogSF.info(logger, "Record: <{}> -> Record ignored - invalid message format.", evSysSeq);
+        }
 
-                    // parsing path into tokens
-                    StringTokenizer st2 = new StringTokenizer(destinationPath, "\\");
+        return Boolean.FALSE;
+    }
 
-                    // getting last token with file name
-                    while (st2.hasMoreTokens()) {
-                        fileName = st2.nextToken();
-                    }
+    /**
+     * Prepares attachments lookup for parsed record.
+     *
+     * @return Attachment request or NULL if attachments should not be retrieved
+     * @throws Exception
+     */
+    public AttachmentRequest prepareAttachmentRequest() throws Exception {
+        attachmentRequest = null;
 
-                    break;
-                default:
-                    // just continue :-)
-                    st1.nextToken();
+        if (withAttachments && !tenant.ignoresAttachments()) {
+            setNotificationTime();
 
-                    break;
-                }
+            long[] boundaries = database.getActivityBoundaries(ticketSource, ticketNumber, notificationTime);
 
-                pos++;
+            if (boundaries[0] <= boundaries[1]) {
+                attachmentRequest = new AttachmentRequest(ticketSource, ticketNumber, boundaries, destinationPath, fileName,
+                        tenant);
             }
+        }
 
-            // checking customer tool name
-            if (destinationPath.contains(Configuration.customer_tool)) {
-                // checking if message is complete
-                if (!ticketSource.contains("Thismessagedidnotprovideenougharguments")) {
-                    Configuration.increaseNotificationsCount();
+        return attachmentRequest;
+    }
 
-                    // saving attachments if they are available
-                    if (withAttachments && !Configuration.ignoreAttachments) {
-                        setNotificationTime();
+    /**
+     * Saves parsed record with its attachments on disk and removes it from eventout.
+     *
+     * @throws Exception
+     */
+    public void saveRecord() throws Exception {
+        // saving attachments if they are available
+        if (withAttachments && !tenant.ignoresAttachments()) {
+            int number = saveAttachments();
 
-                        int number = getAttachments();
+            LogSF.info(tenant.getLogger(), "Record: <{}> -> filename = {} has {} attachment(s)", evSysSeq, fileName, number);
+        } else {
+            LogSF.info(tenant.getLogger(), "Record: <{}> -> filename = {} has 0 attachment(s)", evSysSeq, fileName);
+        }
 
-                        logger.info("Record: " + getRecordNumber() + "filename = " + fileName + " has " + number + " attachment(s)");
-                    } else {
-                        logger.info("Record: " + getRecordNumber() + "filename = " + fileName + " has 0 attachment(s)");
-                    }
+        // save message on disk
+        long start = System.nanoTime();
+        saveNotification();
+        metrics.fileWrite.observeSince(start);
 
-                    // save message on disk
-                    saveNotification();
+        Journal.add(evSysSeq, destinationPath);
+        metrics.latency.observeSince(readNanos);
 
-                    // remove record from table
-                    if (!Configuration.isReadOnly) {
-                        database.removeRecordFromEventOut(evSysSeq);
-                    }
-                } else {
-                    logger.warn("Record: " + getRecordNumber() + "Record ignored - message is incomplete.");
-                }
-            } else {
-                logger.info("Record: " + getRecordNumber() + "Record ignored - message for another interface.");
-            }
-        } else {
-            logger.info("Record: " + getRecordNumber() + "Record ignored - invalid message format.");
+        // remove record from table
+        if (!Configuration.isReadOnly) {
+            database.removeRecordFromEventOut(evSysSeq);
         }
     }
 
@@ -203,49 +178,38 @@ public class EventOutRecord implements Runnable {
     }
 
     /**
-     * Gets attachments related with event record.
+     * Prepares list of attachments saved for event record.
      *
      * @return Number of attachments
-     * @throws Exception
+     * @throws InterruptedException
      */
-    private int getAttachments() throws Exception {
-        long[] boundaries = database.getActivityBoundaries(ticketSource, ticketNumber, notificationTime);
-
-        if (boundaries[0] <= boundaries[1]) {
-            attachments = database.getAttachments(ticketNumber, boundaries);
-
-            if (ticketSource.equals("LINEITEM") && attachments.isEmpty()) {
-                String phaseNumber = database.getLineItemPhaseNum(ticketNumber);
-
-                attachments = database.getAttachments(phaseNumber, boundaries);
-            }
+    private int saveAttachments() throws InterruptedException {
+        if (attachmentRequest == null) {
+            return 0;
+        }
 
-            if (!attachments.isEmpty()) {
-                StringBuilder sb = new StringBuilder();
-                sb.append("&attachment=");
+        ArrayList<Attachment> attachments = attachmentRequest.getAttachments();
 
-                for (int index = 0; index < attachments.size(); index++) {
-                    try {
-                        attachments.get(index).saveAttachment(destinationPath, fileName, index + 1);
+        if (!attachments.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
 
-                        sb.append(attachments.get(index).getFileName());
+            // attachments are already on disk (or being decompressed), those that couldn't be read are ignored
+            for (int index = 0; index < attachments.size(); index++) {
+                attachments.get(index).await();
 
-                        if (index + 1 != attachments.size()) {
-                            sb.append("|");
-                        }
-                    } catch (Throwable e) {
-                        logger.error(getRecordNumber() + "Attachment: " + attachments.get(index).getFileName()
-                                + " couldn't be read and will be ignored:", e);
+                if (attachments.get(index).isSaved()) {
+                    if (sb.length() > 0) {
+                        sb.append("|");
                     }
-                }
 
-                attachmentNames = sb.toString() + ";\r\n";
+                    sb.append(attachments.get(index).getFileName());
+                }
             }
 
-            return attachments.size();
-        } else {
-            return 0;
+            attachmentNames = "&attachment=" + sb.toString() + ";\r\n";
         }
+
+        return attachments.size();
     }
 
     /**
@@ -254,47 +218,81 @@ public class EventOutRecord implements Runnable {
      * @throws Exception
      */
     private void saveNotification() throws Exception {
-        File dir = new File(destinationPath.replace(fileName, ""));
+        NotificationWriter.getDirectory(destinationPath.replace(fileName, ""));
 
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
+        NotificationWriter.write(new File(destinationPath), message, attachmentNames);
+    }
 
-        FileOutputStream fos = new FileOutputStream(destinationPath);
+    /**
+     * Gets formatted eventout record number for logger.
+     *
+     * @return Formatted eventout record number
+     */
+    private String getRecordNumber() {
+        return "<" + evSysSeq + "> -> ";
+    }
 
-        // BOM for utf-8
-        byte[] bom = new byte[3];
-        bom[0] = (byte) 0xEF;
-        bom[1] = (byte) 0xBB;
-        bom[2] = (byte) 0xBF;
-        fos.write(bom);
+    /**
+     * Checks if record is a line item notification.
+     *
+     * @return TRUE if ticket source is LINEITEM
+     */
+    public Boolean isLineItem() {
+        return "LINEITEM".equals(ticketSource);
+    }
 
-        fos.write(message.getBytes("utf-8"));
+    /**
+     * Gets ticket number.
+     *
+     * @return Ticket number
+     */
+    public String getTicketNumber() {
+        return ticketNumber;
+    }
 
-        if (!attachmentNames.isEmpty()) {
-            fos.write(attachmentNames.getBytes("utf-8"));
-        }
+    /**
+     * Gets attachments lookup prepared for record.
+     *
+     * @return Attachment request or NULL if attachments are not retrieved
+     */
+    public AttachmentRequest getAttachmentRequest() {
+        return attachmentRequest;
+    }
 
-        fos.close();
+    /**
+     * Replaces attachments lookup, e.g. with lookup for line item phase.
+     *
+     * @param attachmentRequest
+     *            Attachment request
+     */
+    public void setAttachmentRequest(AttachmentRequest attachmentRequest) {
+        this.attachmentRequest = attachmentRequest;
     }
 
     /**
-     * Gets formatted eventout record number for logger.
+     * Gets unique event key.
      *
-     * @return Formatted eventout record number
+     * @return evsysseq value
      */
-    private String getRecordNumber() {
-        return "<" + evSysSeq + "> -> ";
+    public String getEvSysSeq() {
+        return evSysSeq;
     }
 
     /**
-     * Run method for ThreadExecutor. Executes event record parsing.
+     * Releases CLOB locator of the record.
      */
-    public void run() {
+    public void close() {
         try {
-            parseRecord();
+            evFields.free();
         } catch (Throwable e) {
-            logger.error(getRecordNumber() + "Unable to parse eventout record:\r\n", e);
+            logger.debug(getRecordNumber() + "Unable to free evFields", e);
         }
     }
+
+    /**
+     * Run method for ThreadExecutor. Executes event record processing from parsing to removal.
+     */
+    public void run() {
+        new EventOutBatch(database, Collections.singletonList(this)).run();
+    }
 }
@@ -0,0 +1,157 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that collects processed eventout records and removes them from database in batches, with one commit per batch.
+ * Batch is removed when it reaches configured size or when configured time has passed.
+ *
+ * @author sgacka
+ */
+public class EventOutRemover {
+
+    private final Database database;
+    private final int batchSize;
+    private final long interval;
+    private ArrayList<String> pending;
+    private final ReentrantLock lock;
+    private ScheduledExecutorService timer;
+    private static final Logger logger = Logger.getLogger(EventOutRemover.class);
+
+    /**
+     * EventOutRemover constructor.
+     *
+     * @param database
+     *            Database object
+     * @param batchSize
+     *            Maximum number of records removed in one batch
+     * @param interval
+     *            Maximum time (in milliseconds) record waits for removal
+     */
+    public EventOutRemover(Database database, int batchSize, long interval) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.pending = new ArrayList<String>(batchSize);
+        // records are added from virtual threads as well
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Starts timer that removes incomplete batches.
+     */
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "eventout-remover");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds record to the current batch. Notification file of the record must be already saved on disk.
+     *
+     * @param evSysSeq
+     *            evsysseq key value
+     */
+    public void remove(String evSysSeq) {
+        ArrayList<String> batch = null;
+
+        lock.lock();
+        try {
+            pending.add(evSysSeq);
+
+            if (pending.size() >= batchSize) {
+                batch = pending;
+                pending = new ArrayList<String>(batchSize);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (batch != null) {
+            removeBatch(batch);
+        }
+    }
+
+    /**
+     * Removes all collected records.
+     */
+    public void flush() {
+        ArrayList<String> batch;
+
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            batch = pending;
+            pending = new ArrayList<String>(batchSize);
+        } finally {
+            lock.unlock();
+        }
+
+        removeBatch(batch);
+    }
+
+    /**
+     * Gets number of records waiting for removal.
+     *
+     * @return Number of records
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops timer and removes remaining records.
+     */
+    public void close() {
+        if (timer != null) {
+            timer.shutdown();
+
+            try {
+                timer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * Removes batch of records from database.
+     *
+     * @param batch
+     *            List of evsysseq key values
+     */
+    private void removeBatch(ArrayList<String> batch) {
+        try {
+            database.removeRecordsFromEventOut(batch);
+        } catch (Throwable e) {
+            logger.error("Unable to remove " + batch.size() + " record(s) from eventout: evsysseq = " + batch, e);
+        }
+    }
+}
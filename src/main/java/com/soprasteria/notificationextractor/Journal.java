@@ -0,0 +1,308 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents local journal of delivered eventout records, kept in embedded H2 database. Records found in
+ * journal are not processed again, they are only removed from eventout (in read-write mode). Ignored records are not
+ * journaled, so they are parsed again when configuration changes. All journaled evsysseq values are kept in memory, so
+ * lookup doesn't touch the database. New entries are written in batches - when batch is full or before records are
+ * removed from eventout, workers only queue them. Entries older than retention time are removed when journal is
+ * compacted.
+ *
+ * @author sgacka
+ */
+public class Journal {
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS JOURNAL (EVSYSSEQ VARCHAR(64) PRIMARY KEY, "
+            + "PATH VARCHAR(1024), PROCESSED TIMESTAMP NOT NULL)";
+    private static final String INSERT = "MERGE INTO JOURNAL (EVSYSSEQ, PATH, PROCESSED) KEY (EVSYSSEQ) VALUES (?, ?, ?)";
+    private static final String SELECT = "SELECT EVSYSSEQ FROM JOURNAL";
+    private static final String SELECT_EXPIRED = "SELECT EVSYSSEQ FROM JOURNAL WHERE PROCESSED < ?";
+    private static final String DELETE_EXPIRED = "DELETE FROM JOURNAL WHERE PROCESSED < ?";
+
+    private static volatile Connection connection;
+    private static PreparedStatement insert;
+    private static final ConcurrentHashMap<String, Boolean> entries = new ConcurrentHashMap<String, Boolean>();
+    private static final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+    private static final AtomicInteger pendingCount = new AtomicInteger();
+    /**
+     * Guards journal database, workers never wait for it when batch is written
+     */
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static int batchSize;
+    private static long retention;
+    private static Boolean isCompacted = Boolean.FALSE;
+    private static final Logger logger = Logger.getLogger(Journal.class);
+
+    /**
+     * Opens journal and loads all its entries, expired entries are removed first.
+     *
+     * @param path
+     *            Path of the journal (without H2 file extension), journal is not used if NULL
+     * @param retentionDays
+     *            Number of days the entries are kept
+     * @param batchSize
+     *            Number of entries written in one batch
+     * @throws Exception
+     */
+    public static void open(String path, int retentionDays, int batchSize) throws Exception {
+        if (path == null) {
+            return;
+        }
+
+        Journal.batchSize = batchSize;
+        retention = retentionDays * 24L * 60 * 60 * 1000;
+
+        // H2 is used through JDBC only, it is loaded when journal is configured
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection("jdbc:h2:" + new File(path).getAbsolutePath(), "sa", "");
+
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(CREATE_TABLE);
+        } finally {
+            statement.close();
+        }
+
+        compact();
+
+        statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery(SELECT);
+
+            while (resultSet.next()) {
+                entries.put(resultSet.getString(1), Boolean.TRUE);
+            }
+
+            resultSet.close();
+        } finally {
+            statement.close();
+        }
+
+        insert = connection.prepareStatement(INSERT);
+
+        logger.info("Journal has been opened (" + entries.size() + " processed records)");
+    }
+
+    /**
+     * Checks if notification of record has been delivered already.
+     *
+     * @param evSysSeq
+     *            Unique event key
+     * @return TRUE if record is in journal
+     */
+    public static Boolean isDelivered(String evSysSeq) {
+        return entries.containsKey(evSysSeq);
+    }
+
+    /**
+     * Adds delivered record to journal. Record must be added only after its notification is stored on disk.
+     *
+     * @param evSysSeq
+     *            Unique event key
+     * @param path
+     *            Path of delivered notification
+     */
+    public static void add(String evSysSeq, String path) {
+        if (connection == null) {
+            return;
+        }
+
+        entries.put(evSysSeq, Boolean.TRUE);
+        pending.add(new Entry(evSysSeq, path, System.currentTimeMillis()));
+
+        // batch is written by the worker which filled it, unless other batch is being written
+        if (pendingCount.incrementAndGet() >= batchSize && lock.tryLock()) {
+            try {
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes all queued entries, called before records are removed from eventout.
+     */
+    public static void flush() {
+        if (connection == null || pending.isEmpty()) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            write();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes queued entries in one batch, lock must be held.
+     */
+    private static void write() {
+        if (insert == null) {
+            return;
+        }
+
+        int count = 0;
+
+        try {
+            Entry entry;
+            while ((entry = pending.poll()) != null) {
+                insert.setString(1, entry.evSysSeq);
+                insert.setString(2, entry.path);
+                insert.setTimestamp(3, new Timestamp(entry.time));
+                insert.addBatch();
+                count++;
+            }
+
+            if (count > 0) {
+                insert.executeBatch();
+            }
+        } catch (Exception e) {
+            // records are processed again in the next run
+            logger.error("Unable to add " + count + " records to journal", e);
+
+            try {
+                insert.clearBatch();
+            } catch (Exception ex) {
+                // batch is replaced by the next one anyway
+            }
+        } finally {
+            pendingCount.addAndGet(-count);
+        }
+    }
+
+    /**
+     * Removes entries older than retention time.
+     */
+    public static void compact() {
+        if (connection == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            compactEntries();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes entries older than retention time, lock must be held.
+     */
+    private static void compactEntries() {
+        Timestamp expired = new Timestamp(System.currentTimeMillis() - retention);
+
+        try {
+            PreparedStatement select = connection.prepareStatement(SELECT_EXPIRED);
+
+            try {
+                select.setTimestamp(1, expired);
+                ResultSet resultSet = select.executeQuery();
+
+                while (resultSet.next()) {
+                    entries.remove(resultSet.getString(1));
+                }
+
+                resultSet.close();
+            } finally {
+                select.close();
+            }
+
+            PreparedStatement delete = connection.prepareStatement(DELETE_EXPIRED);
+
+            try {
+                delete.setTimestamp(1, expired);
+                int count = delete.executeUpdate();
+
+                if (count > 0) {
+                    isCompacted = Boolean.TRUE;
+                    logger.info("Journal: " + count + " expired entries removed");
+                }
+            } finally {
+                delete.close();
+            }
+        } catch (Exception e) {
+            logger.error("Unable to compact journal", e);
+        }
+    }
+
+    /**
+     * Closes journal, database file is compacted if entries were removed.
+     */
+    public static void close() {
+        if (connection == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            write();
+
+            if (insert != null) {
+                insert.close();
+                insert = null;
+            }
+
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(isCompacted ? "SHUTDOWN COMPACT" : "SHUTDOWN");
+            } finally {
+                statement.close();
+            }
+        } catch (Exception e) {
+            logger.error("Unable to close journal", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                // connection is already closed by shutdown
+            }
+
+            connection = null;
+            entries.clear();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivered record waiting to be written to journal.
+     */
+    private static class Entry {
+
+        private final String evSysSeq;
+        private final String path;
+        private final long time;
+
+        /**
+         * Entry constructor.
+         *
+         * @param evSysSeq
+         *            Unique event key
+         * @param path
+         *            Path of delivered notification
+         * @param time
+         *            Time of delivery
+         */
+        private Entry(String evSysSeq, String path, long time) {
+            this.evSysSeq = evSysSeq;
+            this.path = path;
+            this.time = time;
+        }
+    }
+}
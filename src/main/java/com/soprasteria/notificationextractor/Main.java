@@ -1,11 +1,11 @@
 package com.soprasteria.notificationextractor;
 
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 /**
@@ -16,6 +16,10 @@ import org.apache.log4j.Logger;
 public class Main {
 
     static Logger logger = Logger.getLogger(Main.class);
+    /**
+     * FALSE when application has been stopped
+     */
+    private static volatile Boolean isRunning = Boolean.TRUE;
 
     /**
      * @param args
@@ -27,49 +31,22 @@ public class Main {
 
         Configuration.start = Calendar.getInstance().getTime();
 
-        if (args.length > 3 || args.length < 1) {
+        if (args.length > 4 || args.length < 1 || !parseOptions(args)) {
             printUsage();
 
             System.exit(0);
-        } else {
-            if (args.length == 2) {
-                if (args[1].toUpperCase().equals("-R")) {
-                    Configuration.isReadOnly = Boolean.TRUE;
-                } else if (args[1].toUpperCase().equals("-NA")) {
-                    Configuration.ignoreAttachments = Boolean.TRUE;
-                } else if (args[1].toUpperCase().startsWith("-LA")) {
-                    Configuration.limitAttachments = Boolean.TRUE;
-
-                    parseAttachmentLimit(args[1]);
-                } else {
-                    printUsage();
-
-                    System.exit(0);
-                }
-            } else if (args.length == 3) {
-                if (args[1].toUpperCase().equals("-R") && args[2].toUpperCase().equals("-NA")) {
-                    Configuration.isReadOnly = Boolean.TRUE;
-                    Configuration.ignoreAttachments = Boolean.TRUE;
-                } else if (args[1].toUpperCase().equals("-R") && args[2].toUpperCase().startsWith("-LA")) {
-                    Configuration.isReadOnly = Boolean.TRUE;
-                    Configuration.limitAttachments = Boolean.TRUE;
-
-                    parseAttachmentLimit(args[2]);
-                } else {
-                    printUsage();
-
-                    System.exit(0);
-                }
-            } else {
-                // go standard
-            }
         }
 
         if (Configuration.loadConfigurationFile(args[0])) {
             logger.info("<------------  Starting Notification Extractor 1.3.1  ------------>");
             logger.info("Getting notifications for: " + Configuration.customer_tool);
 
-            processing();
+            try {
+                processing();
+            } finally {
+                // asynchronous appenders write remaining events, also when daemon is stopped by shutdown hook
+                LogManager.shutdown();
+            }
         } else {
             printUsage();
 
@@ -104,50 +81,336 @@ public class Main {
             }
         }
 
+        if (Configuration.useVirtualThreads) {
+            logger.info("Process information: records are processed on virtual threads (max " + Configuration.virtualMaxRecords
+                    + " at once)");
+        }
+
+        if (Configuration.tenants.size() > 1) {
+            for (Tenant tenant : Configuration.tenants) {
+                logger.info("Process information: customer tool " + tenant.getName() + " - " + tenant.getAttachmentsPolicy());
+            }
+        }
+
+        if (Configuration.claimBatchSize > 0) {
+            logger.info("Process information: eventout is shared with other instances, records are claimed in batches of "
+                    + Configuration.claimBatchSize);
+        }
+
+        if (Configuration.isDaemon) {
+            logger.info("Process information: running as daemon, poll interval: " + Configuration.pollIntervalMin + "-"
+                    + Configuration.pollIntervalMax + " ms");
+        }
+
+        // records processed in previous runs are skipped
+        Journal.open(Configuration.journalPath, Configuration.journalRetention, Configuration.deleteBatchSize);
+
         Database db = new Database(Configuration.db_user, Configuration.db_password, Configuration.db_host, Configuration.db_port,
-                Configuration.db_sid);
+                Configuration.db_sid, Configuration.db_pool_size);
         db.connect();
 
-        EventOut eventOut = new EventOut(db);
-        eventOut.getEventOut();
+        // metrics file is updated periodically only when running as daemon
+        Metrics.start(Configuration.metricsPath, Configuration.isDaemon ? Configuration.metricsInterval : 0);
+
+        Pipeline pipeline = new Pipeline(db);
+        if (!Configuration.useVirtualThreads) {
+            pipeline.start();
+        }
+
+        try {
+            if (Configuration.isDaemon) {
+                daemon(db, pipeline);
+            } else {
+                logger.info("Starting eventout processing...");
+                Date start = Calendar.getInstance().getTime();
+
+                int recordsCount;
+                if (Configuration.claimBatchSize > 0) {
+                    recordsCount = processClaims(db, pipeline);
+                } else {
+                    EventOut eventOut = new EventOut(db, Configuration.fetchSize, null);
+                    processEventOut(db, pipeline, eventOut);
+
+                    recordsCount = eventOut.getRecordsCount();
+                }
+
+                if (recordsCount > 0) {
+                    Date stop = Calendar.getInstance().getTime();
+                    logger.info("Eventout processing complete in " + (double) (stop.getTime() - start.getTime()) / 1000 + " seconds");
 
-        if (eventOut.getRecordsCount() > 0) {
-            logger.info("Starting eventout processing...");
+                    logger.info(Configuration.getNotificationsCount());
+                } else {
+                    logger.info("No records found");
+                }
+
+                if (Configuration.dedupAttachments) {
+                    AttachmentStore.cleanup();
+                }
+            }
+        } finally {
+            pipeline.stop();
+            db.disconnect();
+            Journal.close();
+            Metrics.stop();
+        }
+
+        Configuration.stop = Calendar.getInstance().getTime();
+        logger.info("Execution time: " + (double) (Configuration.stop.getTime() - Configuration.start.getTime()) / 1000 + " seconds");
+        logger.info("SUCCESS. Application ended with success.");
+    }
+
+    /**
+     * Polls eventout table until application is stopped. Only records above the last seen evsysseq are read, whole table is
+     * read again from time to time to pick up records that failed or were committed late. Poll interval grows while eventout
+     * is empty.
+     *
+     * @param db
+     *            Database object
+     * @param pipeline
+     *            Records processing pipeline
+     * @throws Exception
+     */
+    private static void daemon(Database db, Pipeline pipeline) throws Exception {
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+            public void run() {
+                logger.info("Stopping daemon...");
+                isRunning = Boolean.FALSE;
+                mainThread.interrupt();
+
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        String watermark = null;
+        long lastFullScan = 0;
+        long interval = Configuration.pollIntervalMin;
+
+        while (isRunning) {
+            long now = System.currentTimeMillis();
+            Boolean isFullScan = now - lastFullScan >= Configuration.fullScanInterval * 1000L;
             Date start = Calendar.getInstance().getTime();
 
-            ExecutorService threadExecutor = Executors.newFixedThreadPool(100);
-            ArrayList<EventOutRecord> eventRecords = new ArrayList<EventOutRecord>();
+            if (isFullScan) {
+                Journal.compact();
+
+                if (Configuration.dedupAttachments) {
+                    AttachmentStore.cleanup();
+                }
+            }
+
+            int recordsCount = 0;
+
+            if (Configuration.claimBatchSize > 0) {
+                // records left by other instances are claimed as well, so every poll goes through whole eventout
+                try {
+                    recordsCount = processClaims(db, pipeline);
+                } catch (Throwable e) {
+                    logger.error("Unable to process eventout", e);
+                }
+            } else {
+                EventOut eventOut = new EventOut(db, Configuration.fetchSize, isFullScan ? null : watermark);
+                try {
+                    processEventOut(db, pipeline, eventOut);
+                } catch (Throwable e) {
+                    logger.error("Unable to process eventout", e);
+                }
+
+                if (eventOut.getLastEvSysSeq() != null
+                        && (watermark == null || Database.compareEvSysSeq(eventOut.getLastEvSysSeq(), watermark) > 0)) {
+                    watermark = eventOut.getLastEvSysSeq();
+                } else if (eventOut.getLastEvSysSeq() == null && eventOut.getRecordsCount() > 0) {
+                    // evsysseq values can't be ordered, every poll reads whole eventout
+                    watermark = null;
+                }
+
+                recordsCount = eventOut.getRecordsCount();
+            }
+
+            if (isFullScan) {
+                lastFullScan = now;
+            }
+
+            if (recordsCount > 0) {
+                Date stop = Calendar.getInstance().getTime();
+                logger.info("Eventout processing complete in " + (double) (stop.getTime() - start.getTime()) / 1000 + " seconds");
+                logger.info(Configuration.getNotificationsCount());
+
+                interval = Configuration.pollIntervalMin;
+            } else {
+                // back off while eventout is empty
+                interval = Math.min(interval * 2, Configuration.pollIntervalMax);
+            }
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        // clear interrupt status set by shutdown hook
+        Thread.interrupted();
+    }
+
+    /**
+     * Goes through eventout in claimed batches. Every batch is locked for this instance, processed and removed before the
+     * next one is claimed. Records which stay in eventout (ignored or failed) are not claimed again during the same pass.
+     *
+     * @param db
+     *            Database object
+     * @param pipeline
+     *            Records processing pipeline
+     * @return Number of records claimed
+     * @throws Exception
+     * @throws InterruptedException
+     */
+    private static int processClaims(Database db, Pipeline pipeline) throws Exception, InterruptedException {
+        String watermark = null;
+        int recordsCount = 0;
+
+        while (isRunning) {
+            EventOut claim = new EventOut(db, Configuration.fetchSize, watermark, Configuration.claimBatchSize);
+            processEventOut(db, pipeline, claim);
+
+            recordsCount += claim.getRecordsCount();
+
+            // fewer records than requested means that the rest of eventout is empty or claimed by other instances
+            if (claim.getRecordsCount() < Configuration.claimBatchSize) {
+                break;
+            }
+
+            // without watermark the same records would be claimed again
+            watermark = claim.getLastEvSysSeq();
+            if (watermark == null) {
+                break;
+            }
+        }
+
+        return recordsCount;
+    }
+
+    /**
+     * Reads eventout queue and passes all its records to the pipeline, waits until they are processed.
+     *
+     * @param db
+     *            Database object
+     * @param pipeline
+     *            Records processing pipeline
+     * @param eventOut
+     *            Eventout queue
+     * @throws Exception
+     * @throws InterruptedException
+     */
+    private static void processEventOut(Database db, Pipeline pipeline, EventOut eventOut) throws Exception, InterruptedException {
+        if (Configuration.useVirtualThreads) {
+            processEventOutVirtual(db, eventOut);
+
+            return;
+        }
+
+        try {
+            eventOut.getEventOut();
 
             EventOutRecord eor;
-            for (int index = 0; index < eventOut.getRecordsCount(); index++) {
-                eor = eventOut.getEventOutRecord(index);
-                eventRecords.add(eor);
+            while (isRunning && (eor = eventOut.getNextEventOutRecord()) != null) {
+                // waits while parse stage queue is full
+                pipeline.submit(eor);
             }
+        } finally {
+            while (true) {
+                try {
+                    pipeline.awaitIdle();
 
-            // only execute() can be here!
-            for (int index = 0; index < eventRecords.size(); index++) {
-                threadExecutor.execute(eventRecords.get(index));
+                    break;
+                } catch (InterruptedException e) {
+                    // records already read are always completed
+                }
             }
 
-            threadExecutor.shutdown();
-            while (!threadExecutor.isTerminated()) {
-                threadExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            // records read their evfields through the cursor, so it is closed after all of them are processed
+            eventOut.close();
+
+            // processed records are removed before eventout is read again
+            db.flushRemovals();
+        }
+    }
+
+    /**
+     * Reads eventout queue and processes every record on its own virtual thread, waits until they are processed.
+     *
+     * @param db
+     *            Database object
+     * @param eventOut
+     *            Eventout queue
+     * @throws Exception
+     * @throws InterruptedException
+     */
+    private static void processEventOutVirtual(Database db, EventOut eventOut) throws Exception, InterruptedException {
+        // reading eventout waits while too many records are processed
+        final Semaphore records = new Semaphore(Configuration.virtualMaxRecords);
+
+        try {
+            // executor is closed when all records are processed
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                eventOut.getEventOut();
+
+                EventOutRecord eor;
+                while (isRunning && (eor = eventOut.getNextEventOutRecord()) != null) {
+                    records.acquire();
+
+                    final EventOutRecord record = eor;
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                record.run();
+                            } finally {
+                                records.release();
+                            }
+                        }
+                    });
+                }
             }
+        } finally {
+            // records read their evfields through the cursor, so it is closed after all of them are processed
+            eventOut.close();
 
-            Date stop = Calendar.getInstance().getTime();
-            logger.info("Eventout processing complete in " + (double) (stop.getTime() - start.getTime()) / 1000 + " seconds");
+            // processed records are removed before eventout is read again
+            db.flushRemovals();
+        }
+    }
 
-            logger.info(Configuration.getNotificationsCount());
-            Configuration.stop = Calendar.getInstance().getTime();
-            logger.info("Execution time: " + (double) (Configuration.stop.getTime() - Configuration.start.getTime()) / 1000 + " seconds");
-            logger.info("SUCCESS. Application ended with success.");
-        } else {
-            logger.info("No records found");
+    /**
+     * Parses optional command line parameters.
+     *
+     * @param args
+     *            the command line arguments
+     * @return TRUE if all parameters are correct
+     */
+    private static Boolean parseOptions(String[] args) {
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i].toUpperCase();
+
+            if (option.equals("-R") && !Configuration.isReadOnly) {
+                Configuration.isReadOnly = Boolean.TRUE;
+            } else if (option.equals("-D") && !Configuration.isDaemon) {
+                Configuration.isDaemon = Boolean.TRUE;
+            } else if (option.equals("-NA") && !Configuration.ignoreAttachments && !Configuration.limitAttachments) {
+                Configuration.ignoreAttachments = Boolean.TRUE;
+            } else if (option.startsWith("-LA") && !Configuration.ignoreAttachments && !Configuration.limitAttachments) {
+                Configuration.limitAttachments = Boolean.TRUE;
 
-            Configuration.stop = Calendar.getInstance().getTime();
-            logger.info("Execution time: " + (double) (Configuration.stop.getTime() - Configuration.start.getTime()) / 1000 + " seconds");
-            logger.info("SUCCESS. Application ended with success.");
+                parseAttachmentLimit(args[i]);
+            } else {
+                return Boolean.FALSE;
+            }
         }
+
+        return Boolean.TRUE;
     }
 
     /**
@@ -156,7 +419,7 @@ public class Main {
     private static void printUsage() {
         System.out.println("\r\nCorrect usage:\tjava -jar NotificationExtractor [CONFIG_PATH] <MODE> <ATTACHMENT>");
         System.out.println("where:\r\nCONFIG_PATH is:\r\n\tpath to the configuration file");
-        System.out.println("MODE is:\r\n\t-R\tread only (optional)");
+        System.out.println("MODE is:\r\n\t-R\tread only (optional)\r\n\t-D\trun as daemon, poll eventout until stopped (optional)");
         System.out.println(
                 "ATTACHMENT is:\r\n\t-NA\tignore attachments (optional)\r\n\t-LA:<num>\tlimit number of attachments to <num> value (optional)");
     }
@@ -0,0 +1,84 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that represents process-wide budget of memory for attachment data and notification buffers. Attachment spool
+ * reserves its size first, data which doesn't fit in the budget is spilled to disk. Buffers needed for processing
+ * (attachment read buffer, decompression output, notification encoding) are reserved while they are in use even when
+ * budget is exceeded, so less memory is left for spools. Reservations never wait, so budget can't block processing.
+ *
+ * @author sgacka
+ */
+public class MemoryBudget {
+
+    /**
+     * Budget size in bytes (set with {@link #configure(int)})
+     */
+    private static volatile long size = 256 * 1024 * 1024;
+    private static final AtomicLong used = new AtomicLong();
+
+    /**
+     * Sets budget size, called before attachments are read.
+     *
+     * @param megabytes
+     *            Budget size in MB
+     */
+    public static void configure(int megabytes) {
+        size = megabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Reserves memory if it is available.
+     *
+     * @param bytes
+     *            Number of bytes
+     * @return TRUE if memory was reserved, FALSE if data should be spilled to disk
+     */
+    public static Boolean tryReserve(int bytes) {
+        while (true) {
+            long current = used.get();
+
+            if (current + bytes > size) {
+                return Boolean.FALSE;
+            }
+
+            if (used.compareAndSet(current, current + bytes)) {
+                return Boolean.TRUE;
+            }
+        }
+    }
+
+    /**
+     * Reserves memory of buffer which can't be spilled to disk, budget may be exceeded.
+     *
+     * @param bytes
+     *            Number of bytes
+     */
+    public static void reserve(int bytes) {
+        if (bytes > 0) {
+            used.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Returns reserved memory to the budget.
+     *
+     * @param bytes
+     *            Number of bytes reserved with {@link #tryReserve(int)} or {@link #reserve(int)}
+     */
+    public static void release(int bytes) {
+        if (bytes > 0) {
+            used.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Gets reserved memory.
+     *
+     * @return Number of bytes
+     */
+    public static long getUsed() {
+        return used.get();
+    }
+}
@@ -0,0 +1,690 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that collects runtime metrics - counters, latency histograms and gauges. Every metric is labeled with customer tool
+ * and optional labels (e.g. ticket source). Metrics are available over JMX and written to file in Prometheus text format.
+ *
+ * @author sgacka
+ */
+public class Metrics {
+
+    /**
+     * Label of customer tool the record is routed to
+     */
+    public static final String CUSTOMER_TOOL = "customer_tool";
+    /**
+     * Records read from eventout
+     */
+    public static final String RECORDS_READ = "records_read_total";
+    /**
+     * Notifications for customer tool found
+     */
+    public static final String NOTIFICATIONS = "notifications_total";
+    /**
+     * Records ignored by parser
+     */
+    public static final String RECORDS_IGNORED = "records_ignored_total";
+    /**
+     * Records skipped because they were processed according to journal
+     */
+    public static final String RECORDS_SKIPPED = "records_skipped_total";
+    /**
+     * Records removed from eventout
+     */
+    public static final String RECORDS_REMOVED = "records_removed_total";
+    /**
+     * Time from reading record from eventout until its notification is saved
+     */
+    public static final String RECORD_LATENCY = "record_seconds";
+    /**
+     * evFields CLOB read time
+     */
+    public static final String CLOB_READ = "clob_read_seconds";
+    /**
+     * evFields parse time
+     */
+    public static final String PARSE = "parse_seconds";
+    /**
+     * Attachment query execution time
+     */
+    public static final String ATTACHMENT_QUERY = "attachment_query_seconds";
+    /**
+     * Attachment bytes fetched from database
+     */
+    public static final String ATTACHMENT_BYTES = "attachment_bytes_total";
+    /**
+     * Attachments looked up in attachment store
+     */
+    public static final String ATTACHMENT_STORE = "attachment_store_requests_total";
+    /**
+     * Attachment files made from attachment store
+     */
+    public static final String ATTACHMENT_STORE_LINK = "attachment_store_files_total";
+    /**
+     * Attachments spooled in temporary file instead of memory
+     */
+    public static final String ATTACHMENT_SPILLS = "attachment_spills_total";
+    /**
+     * Memory reserved for attachment data
+     */
+    public static final String MEMORY_RESERVED = "memory_budget_reserved_bytes";
+    /**
+     * Attachment decompression time
+     */
+    public static final String INFLATE = "inflate_seconds";
+    /**
+     * Notification file write time
+     */
+    public static final String FILE_WRITE = "file_write_seconds";
+    /**
+     * Eventout delete and commit time
+     */
+    public static final String DELETE_COMMIT = "delete_commit_seconds";
+    /**
+     * Line item phase number lookups
+     */
+    public static final String PHASE_CACHE = "phase_cache_requests_total";
+    /**
+     * Prepared statement lookups
+     */
+    public static final String STATEMENT_CACHE = "statement_cache_requests_total";
+    /**
+     * Records waiting in stage queue
+     */
+    public static final String STAGE_QUEUE_DEPTH = "stage_queue_depth";
+    /**
+     * Records waiting in stage queue or being processed
+     */
+    public static final String STAGE_IN_FLIGHT = "stage_in_flight";
+    /**
+     * Records waiting for removal from eventout
+     */
+    public static final String DELETE_PENDING = "delete_pending";
+
+    /**
+     * Interface of value read when metrics are exported.
+     */
+    public interface Gauge {
+
+        /**
+         * Gets current value.
+         *
+         * @return Value
+         */
+        long getValue();
+    }
+
+    /**
+     * Counter safe for many threads updating it at once.
+     */
+    public static class Counter {
+
+        private final LongAdder value = new LongAdder();
+
+        /**
+         * Increases counter by one.
+         */
+        public void increment() {
+            value.increment();
+        }
+
+        /**
+         * Increases counter.
+         *
+         * @param delta
+         *            Value to add
+         */
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        /**
+         * Gets counter value.
+         *
+         * @return Value
+         */
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Latency histogram with fixed buckets (in seconds).
+     */
+    public static class Histogram {
+
+        private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+        private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+        static {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+            }
+        }
+
+        // last bucket counts values above all bounds
+        private final LongAdder[] counts;
+        private final LongAdder sum;
+
+        /**
+         * Histogram constructor.
+         */
+        private Histogram() {
+            counts = new LongAdder[BUCKETS.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+            sum = new LongAdder();
+        }
+
+        /**
+         * Records duration.
+         *
+         * @param nanos
+         *            Duration in nanoseconds
+         */
+        public void observe(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+
+            counts[i].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Records duration from given start time until now.
+         *
+         * @param startNanos
+         *            Start time from {@link System#nanoTime()}
+         */
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Gets number of recorded durations.
+         *
+         * @return Count
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+
+            return count;
+        }
+
+        /**
+         * Gets sum of recorded durations.
+         *
+         * @return Sum in seconds
+         */
+        public double getSum() {
+            return sum.sum() / 1e9;
+        }
+
+        /**
+         * Estimates quantile of recorded durations, interpolated linearly within the bucket (like Prometheus
+         * histogram_quantile).
+         *
+         * @param quantile
+         *            Quantile (0 - 1)
+         * @return Duration in seconds, upper bound of the last bucket if quantile is above it, 0 if nothing was recorded
+         */
+        public double getQuantile(double quantile) {
+            long[] snapshot = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            double rank = quantile * total;
+            long below = 0;
+
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (below + snapshot[i] >= rank && snapshot[i] > 0) {
+                    double lower = i == 0 ? 0 : BUCKETS[i - 1];
+
+                    return lower + (BUCKETS[i] - lower) * (rank - below) / snapshot[i];
+                }
+
+                below += snapshot[i];
+            }
+
+            return BUCKETS[BUCKETS.length - 1];
+        }
+    }
+
+    /**
+     * Metric with all its labeled series.
+     */
+    private static class Family {
+
+        private final String type;
+        private final String help;
+        private final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<String, Object>();
+
+        private Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static final String PREFIX = "notificationextractor_";
+    private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+    private static ScheduledExecutorService exporter;
+    private static String exportPath;
+    private static final Logger logger = Logger.getLogger(Metrics.class);
+
+    static {
+        define(RECORDS_READ, "counter", "Records read from eventout");
+        define(NOTIFICATIONS, "counter", "Notifications for customer tool found");
+        define(RECORDS_IGNORED, "counter", "Records ignored by parser");
+        define(RECORDS_SKIPPED, "counter", "Records skipped because they were processed according to journal");
+        define(RECORDS_REMOVED, "counter", "Records removed from eventout");
+        define(RECORD_LATENCY, "histogram", "Time from reading record from eventout until its notification is saved");
+        define(CLOB_READ, "histogram", "evFields CLOB read time");
+        define(PARSE, "histogram", "evFields parse time");
+        define(ATTACHMENT_QUERY, "histogram", "Attachment query execution time");
+        define(ATTACHMENT_BYTES, "counter", "Attachment bytes fetched from database");
+        define(ATTACHMENT_STORE, "counter", "Attachment store lookups by result");
+        define(ATTACHMENT_STORE_LINK, "counter", "Attachment files made from attachment store by method");
+        define(ATTACHMENT_SPILLS, "counter", "Attachments spooled in temporary file instead of memory by reason");
+        define(MEMORY_RESERVED, "gauge", "Memory reserved for attachment data");
+        define(INFLATE, "histogram", "Attachment decompression time");
+        define(FILE_WRITE, "histogram", "Notification file write time (with fsync)");
+        define(DELETE_COMMIT, "histogram", "Eventout batch delete and commit time");
+        define(PHASE_CACHE, "counter", "Line item phase number lookups by cache result");
+        define(STATEMENT_CACHE, "counter", "Prepared statement lookups by cache result");
+        define(STAGE_QUEUE_DEPTH, "gauge", "Records waiting in stage queue");
+        define(STAGE_IN_FLIGHT, "gauge", "Records waiting in stage queue or being processed");
+        define(DELETE_PENDING, "gauge", "Records waiting for removal from eventout");
+    }
+
+    /**
+     * Defines metric.
+     *
+     * @param name
+     *            Metric name
+     * @param type
+     *            Prometheus metric type
+     * @param help
+     *            Metric description
+     */
+    private static void define(String name, String type, String help) {
+        families.put(name, new Family(type, help));
+    }
+
+    /**
+     * Gets counter.
+     *
+     * @param name
+     *            Metric name
+     * @param labels
+     *            Label names and values, labels with NULL value are skipped
+     * @return Counter
+     */
+    public static Counter counter(String name, String... labels) {
+        ConcurrentMap<String, Object> series = families.get(name).series;
+        String key = getLabels(labels);
+
+        Object counter = series.get(key);
+        if (counter == null) {
+            series.putIfAbsent(key, new Counter());
+            counter = series.get(key);
+        }
+
+        return (Counter) counter;
+    }
+
+    /**
+     * Gets latency histogram.
+     *
+     * @param name
+     *            Metric name
+     * @param labels
+     *            Label names and values, labels with NULL value are skipped
+     * @return Histogram
+     */
+    public static Histogram histogram(String name, String... labels) {
+        ConcurrentMap<String, Object> series = families.get(name).series;
+        String key = getLabels(labels);
+
+        Object histogram = series.get(key);
+        if (histogram == null) {
+            series.putIfAbsent(key, new Histogram());
+            histogram = series.get(key);
+        }
+
+        return (Histogram) histogram;
+    }
+
+    /**
+     * Registers gauge, replaces gauge registered earlier with the same labels.
+     *
+     * @param name
+     *            Metric name
+     * @param gauge
+     *            Value read when metrics are exported
+     * @param labels
+     *            Label names and values, labels with NULL value are skipped
+     */
+    public static void gauge(String name, Gauge gauge, String... labels) {
+        families.get(name).series.put(getLabels(labels), gauge);
+    }
+
+    /**
+     * Registers metrics in JMX and starts periodic export to file.
+     *
+     * @param path
+     *            Path of the Prometheus text file, no file is written if NULL
+     * @param interval
+     *            Export interval (in seconds), file is written only by {@link #stop()} if 0
+     */
+    public static void start(String path, int interval) {
+        exportPath = path;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.soprasteria.notificationextractor:type=Metrics");
+
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsBean(), name);
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to register metrics in JMX", e);
+        }
+
+        if (exportPath != null && interval > 0) {
+            exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "metrics-exporter");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+
+            exporter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    export();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops periodic export and writes metrics to file for the last time.
+     */
+    public static void stop() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+
+        export();
+    }
+
+    /**
+     * Writes metrics to file in Prometheus text format. File is replaced at once, so it is never read half written.
+     */
+    public static void export() {
+        if (exportPath == null) {
+            return;
+        }
+
+        File file = new File(exportPath);
+        File temp = new File(exportPath + ".tmp");
+
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "utf-8");
+
+            try {
+                write(writer);
+            } finally {
+                writer.close();
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.warn("Unable to write metrics to " + exportPath, e);
+        }
+    }
+
+    /**
+     * Writes metrics in Prometheus text format.
+     *
+     * @param writer
+     *            Destination
+     * @throws Exception
+     */
+    public static void write(Writer writer) throws Exception {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            String name = PREFIX + entry.getKey();
+
+            if (family.series.isEmpty()) {
+                continue;
+            }
+
+            writer.write("# HELP " + name + " " + family.help + "\n");
+            writer.write("# TYPE " + name + " " + family.type + "\n");
+
+            for (Map.Entry<String, Object> series : new ConcurrentSkipListMap<String, Object>(family.series).entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    long cumulative = 0;
+
+                    for (int i = 0; i < histogram.counts.length; i++) {
+                        cumulative += histogram.counts[i].sum();
+                        String le = i < Histogram.BUCKETS.length ? Double.toString(Histogram.BUCKETS[i]) : "+Inf";
+
+                        writer.write(name + "_bucket{" + labels + ",le=\"" + le + "\"} " + cumulative + "\n");
+                    }
+
+                    writer.write(name + "_sum{" + labels + "} " + histogram.getSum() + "\n");
+                    writer.write(name + "_count{" + labels + "} " + cumulative + "\n");
+                } else {
+                    writer.write(name + "{" + labels + "} " + getValue(metric) + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets all metric values, histograms as their count and sum.
+     *
+     * @return Values by series name
+     */
+    private static LinkedHashMap<String, Object> getValues() {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            for (Map.Entry<String, Object> series : new ConcurrentSkipListMap<String, Object>(entry.getValue().series).entrySet()) {
+                String name = entry.getKey() + "{" + series.getKey() + "}";
+                Object metric = series.getValue();
+
+                if (metric instanceof Histogram) {
+                    values.put(name + "_count", ((Histogram) metric).getCount());
+                    values.put(name + "_sum", ((Histogram) metric).getSum());
+                } else {
+                    values.put(name, getValue(metric));
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Gets value of counter or gauge.
+     *
+     * @param metric
+     *            Counter or gauge
+     * @return Value
+     */
+    private static long getValue(Object metric) {
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        }
+
+        try {
+            return ((Gauge) metric).getValue();
+        } catch (Throwable e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Formats labels in Prometheus format, customer tool label is always the first one. Customer tool of the record is
+     * passed as {@link #CUSTOMER_TOOL} label, without it (or with NULL value) all configured customer tools are used.
+     *
+     * @param labels
+     *            Label names and values
+     * @return Formatted labels
+     */
+    private static String getLabels(String... labels) {
+        String customerTool = Configuration.customer_tool;
+
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (CUSTOMER_TOOL.equals(labels[i]) && labels[i + 1] != null) {
+                customerTool = labels[i + 1];
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(CUSTOMER_TOOL + "=\"");
+        escape(sb, customerTool);
+        sb.append("\"");
+
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (labels[i + 1] != null && !CUSTOMER_TOOL.equals(labels[i])) {
+                sb.append(",").append(labels[i]).append("=\"");
+                escape(sb, labels[i + 1]);
+                sb.append("\"");
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Escapes label value.
+     *
+     * @param sb
+     *            Destination
+     * @param value
+     *            Label value
+     */
+    private static void escape(StringBuilder sb, String value) {
+        if (value == null) {
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * JMX view of metrics - every series is a read-only attribute.
+     */
+    private static class MetricsBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = getValues().get(attribute);
+
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            LinkedHashMap<String, Object> values = getValues();
+            AttributeList list = new AttributeList();
+
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            // attributes are declared read-only in MBeanInfo
+            throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // no operations are declared in MBeanInfo
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Operation " + actionName + " not found");
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+            for (Map.Entry<String, Object> value : getValues().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(), value.getKey(), true,
+                        false, false));
+            }
+
+            return new MBeanInfo(Metrics.class.getName(), "Notification Extractor metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
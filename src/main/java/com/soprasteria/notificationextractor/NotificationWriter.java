@@ -0,0 +1,209 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that writes notification files. Notification is encoded into utf-8 straight from parsed evFields range into a
+ * direct buffer reused by the current thread, then file is written with one gathering write and made visible with
+ * {@link OutputCommitter}. Buffer is reserved from {@link MemoryBudget} only while notification is written. Directories
+ * known to exist are not checked again.
+ *
+ * @author sgacka
+ */
+public class NotificationWriter {
+
+    /**
+     * Size of the buffer allocated for every thread
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Buffers up to this size are kept for the next notifications, larger ones are used once
+     */
+    private static final int MAX_KEPT_BUFFER_SIZE = 4 * 1024 * 1024;
+    /**
+     * Maximum number of remembered directories
+     */
+    private static final int MAX_DIRECTORIES = 10000;
+    private static final ByteBuffer BOM = ByteBuffer.allocateDirect(3).put((byte) 0xEF).put((byte) 0xBB)
+            .put((byte) 0xBF).flip();
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+    private static final ConcurrentHashMap<String, Boolean> directories = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Saves notification file - BOM, message body with DOS line endings and list of attachments.
+     *
+     * @param file
+     *            Notification file
+     * @param message
+     *            Parsed notification
+     * @param attachmentNames
+     *            List of attachments, may be empty
+     * @throws Exception
+     */
+    public static void write(File file, EvFields message, String attachmentNames) throws Exception {
+        // every character takes at most 3 bytes, line feed with added carriage return takes 2
+        int maxSize = (message.getBodyEnd() - message.getBodyStart() + attachmentNames.length()) * 3;
+        ByteBuffer buffer = getBuffer(maxSize);
+        File output = OutputCommitter.getWriteFile(file);
+        FileChannel channel;
+
+        MemoryBudget.reserve(buffer.capacity());
+        try {
+            encode(message.getBodyText(), message.getBodyStart(), message.getBodyEnd(), message.isCrLf(), buffer);
+            encode(attachmentNames, 0, attachmentNames.length(), Boolean.FALSE, buffer);
+            buffer.flip();
+
+            channel = open(output);
+
+            try {
+                ByteBuffer[] content = new ByteBuffer[] { BOM.duplicate(), buffer };
+                long remaining = BOM.remaining() + buffer.remaining();
+
+                while (remaining > 0) {
+                    remaining -= channel.write(content);
+                }
+            } catch (Exception e) {
+                channel.close();
+
+                throw e;
+            }
+        } finally {
+            MemoryBudget.release(buffer.capacity());
+        }
+
+        // channel is closed by committer, attachment files are already committed
+        OutputCommitter.commit(channel, output, file);
+    }
+
+    /**
+     * Gets directory for file, creates it if needed. Directories created or found earlier are not checked again.
+     *
+     * @param path
+     *            Directory path
+     * @return Directory
+     */
+    public static File getDirectory(String path) {
+        File dir = new File(path);
+
+        if (!directories.containsKey(path)) {
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+
+            if (directories.size() >= MAX_DIRECTORIES) {
+                directories.clear();
+            }
+            directories.put(path, Boolean.TRUE);
+        }
+
+        return dir;
+    }
+
+    /**
+     * Opens file for writing. If directory was removed since it was checked, it is created again.
+     *
+     * @param file
+     *            Notification file
+     * @return File channel
+     * @throws IOException
+     */
+    private static FileChannel open(File file) throws IOException {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (NoSuchFileException e) {
+            String parent = file.getParent();
+
+            if (parent == null) {
+                throw e;
+            }
+
+            directories.remove(parent);
+            getDirectory(parent);
+
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    /**
+     * Gets empty buffer of the current thread, bigger buffer is allocated if needed.
+     *
+     * @param size
+     *            Required capacity
+     * @return Buffer
+     */
+    private static ByteBuffer getBuffer(int size) {
+        ByteBuffer buffer = buffers.get();
+
+        if (buffer.capacity() < size) {
+            if (size > MAX_KEPT_BUFFER_SIZE) {
+                return ByteBuffer.allocate(size);
+            }
+
+            buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+            buffers.set(buffer);
+        }
+
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Encodes range of text into utf-8. Unpaired surrogates are replaced with '?' like in {@link String#getBytes}.
+     *
+     * @param text
+     *            Text
+     * @param start
+     *            Beginning of the range
+     * @param end
+     *            End of the range
+     * @param isCrLf
+     *            TRUE if line feeds should be changed to CRLF
+     * @param buffer
+     *            Destination buffer, must have enough space
+     */
+    private static void encode(CharSequence text, int start, int end, Boolean isCrLf, ByteBuffer buffer) {
+        boolean crLf = isCrLf;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                if (c == '\n' && crLf) {
+                    buffer.put((byte) '\r');
+                }
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
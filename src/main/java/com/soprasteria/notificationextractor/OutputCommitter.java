@@ -0,0 +1,302 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that stores written files on disk and makes them visible. Files are committed in groups, like in database group
+ * commit - every directory has its own committer and the first waiting worker syncs files of all workers waiting for the
+ * same directory, then renames them and syncs the directory once. In atomic mode files are written under temporary name
+ * in destination directory, so other programs never see incomplete files, and they are synced even in read-only mode.
+ * Otherwise files are synced only in read-write mode (record is removed from eventout only when file is stored on disk).
+ *
+ * @author sgacka
+ */
+public class OutputCommitter {
+
+    /**
+     * Suffix of files being written
+     */
+    public static final String TEMP_SUFFIX = ".part";
+    /**
+     * Maximum number of remembered committers
+     */
+    private static final int MAX_COMMITTERS = 10000;
+    private static final ConcurrentHashMap<File, OutputCommitter> committers = new ConcurrentHashMap<File, OutputCommitter>();
+    private static final Logger logger = Logger.getLogger(OutputCommitter.class);
+
+    private final File dir;
+    // group leader syncs files without holding the lock, so waiting virtual threads don't pin their carriers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+    private ArrayList<Commit> pending = new ArrayList<Commit>();
+    private Boolean isCommitting = Boolean.FALSE;
+
+    /**
+     * OutputCommitter constructor.
+     *
+     * @param dir
+     *            Directory of committed files
+     */
+    private OutputCommitter(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Gets file which should be written for output file.
+     *
+     * @param file
+     *            Output file
+     * @return Temporary file in atomic mode, output file otherwise
+     */
+    public static File getWriteFile(File file) {
+        if (!Configuration.atomicOutput) {
+            return file;
+        }
+
+        return new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Stores written file on disk and renames it to its final name. Method returns when file is committed, channel is
+     * always closed.
+     *
+     * @param channel
+     *            Open channel of written file, NULL if file was written otherwise (e.g. copied or linked)
+     * @param written
+     *            Written file, in the same directory as final file
+     * @param file
+     *            Final name of the file, the same as written file if it is not renamed
+     * @throws Exception
+     */
+    public static void commit(FileChannel channel, File written, File file) throws Exception {
+        if (!isDurable() && written.equals(file)) {
+            if (channel != null) {
+                channel.close();
+            }
+
+            return;
+        }
+
+        Commit commit = new Commit(channel, written, file);
+        getCommitter(file.getAbsoluteFile().getParentFile()).commit(commit);
+
+        if (commit.error != null) {
+            throw commit.error;
+        }
+    }
+
+    /**
+     * Gets committer of directory, creates it if needed.
+     *
+     * @param dir
+     *            Directory
+     * @return Committer
+     */
+    private static OutputCommitter getCommitter(File dir) {
+        OutputCommitter committer = committers.get(dir);
+
+        if (committer == null) {
+            // workers still using forgotten committers only commit in smaller groups
+            if (committers.size() >= MAX_COMMITTERS) {
+                committers.clear();
+            }
+
+            committers.putIfAbsent(dir, new OutputCommitter(dir));
+            committer = committers.get(dir);
+        }
+
+        return committer;
+    }
+
+    /**
+     * Adds file to the pending group and waits until it is committed, by this worker or by another one.
+     *
+     * @param commit
+     *            Pending commit
+     */
+    private void commit(Commit commit) {
+        lock.lock();
+        try {
+            pending.add(commit);
+
+            while (true) {
+                // file which has been closed must be committed, so waiting is not interrupted
+                while (!commit.isDone && isCommitting) {
+                    committed.awaitUninterruptibly();
+                }
+
+                if (commit.isDone) {
+                    break;
+                }
+
+                // files of all waiting workers are committed by this one
+                isCommitting = Boolean.TRUE;
+                ArrayList<Commit> group = pending;
+                pending = new ArrayList<Commit>();
+
+                lock.unlock();
+                try {
+                    commitGroup(group);
+                } finally {
+                    lock.lock();
+
+                    for (Commit done : group) {
+                        done.isDone = Boolean.TRUE;
+                    }
+
+                    isCommitting = Boolean.FALSE;
+                    committed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if committed files are stored on disk.
+     *
+     * @return TRUE in atomic or read-write mode
+     */
+    private static Boolean isDurable() {
+        return Configuration.atomicOutput || !Configuration.isReadOnly;
+    }
+
+    /**
+     * Syncs files of the group, renames them and syncs the directory.
+     *
+     * @param group
+     *            Pending commits
+     */
+    private void commitGroup(ArrayList<Commit> group) {
+        Boolean isDurable = isDurable();
+
+        for (Commit commit : group) {
+            try {
+                sync(commit, isDurable);
+            } catch (Exception e) {
+                commit.error = e;
+            }
+        }
+
+        ArrayList<Commit> renamed = new ArrayList<Commit>();
+
+        for (Commit commit : group) {
+            if (commit.error != null || commit.written.equals(commit.file)) {
+                continue;
+            }
+
+            try {
+                Files.move(commit.written.toPath(), commit.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                renamed.add(commit);
+            } catch (Exception e) {
+                commit.error = e;
+            }
+        }
+
+        if (!isDurable || renamed.isEmpty()) {
+            return;
+        }
+
+        try {
+            sync(dir);
+        } catch (IOException e) {
+            for (Commit commit : renamed) {
+                commit.error = e;
+            }
+        }
+    }
+
+    /**
+     * Stores content of written file on disk and closes its channel.
+     *
+     * @param commit
+     *            Pending commit
+     * @param isDurable
+     *            TRUE if file should be stored on disk
+     * @throws IOException
+     */
+    private static void sync(Commit commit, Boolean isDurable) throws IOException {
+        FileChannel channel = commit.channel;
+
+        try {
+            if (isDurable) {
+                if (channel == null) {
+                    channel = FileChannel.open(commit.written.toPath(), StandardOpenOption.WRITE);
+                }
+
+                channel.force(true);
+            }
+        } finally {
+            // file can't be renamed on some systems (e.g. Windows) while it is open
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Stores directory entries on disk.
+     *
+     * @param dir
+     *            Directory
+     * @throws IOException
+     */
+    private static void sync(File dir) throws IOException {
+        FileChannel channel;
+
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // directories can't be opened on some systems (e.g. Windows), renames are stored by file system itself
+            logger.debug("Unable to open directory " + dir.getPath() + " for sync", e);
+
+            return;
+        }
+
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Written file waiting for commit.
+     */
+    private static class Commit {
+
+        private final FileChannel channel;
+        private final File written;
+        private final File file;
+        private Boolean isDone = Boolean.FALSE;
+        private Exception error;
+
+        /**
+         * Commit constructor.
+         *
+         * @param channel
+         *            Open channel of written file or NULL
+         * @param written
+         *            Written file
+         * @param file
+         *            Final name of the file
+         */
+        private Commit(FileChannel channel, File written, File file) {
+            this.channel = channel;
+            this.written = written;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class that represents cache of line item phase numbers shared by all workers. Number of cached line items is limited
+ * (least recently used are removed first) and every phase number expires after configured time.
+ *
+ * @author sgacka
+ */
+public class PhaseNumberCache {
+
+    /**
+     * Cached phase number with its expiration time.
+     */
+    private static class Entry {
+
+        private final String phaseNumber;
+        private final long expires;
+
+        private Entry(String phaseNumber, long expires) {
+            this.phaseNumber = phaseNumber;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttl;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * PhaseNumberCache constructor.
+     *
+     * @param maxSize
+     *            Maximum number of cached line items
+     * @param ttl
+     *            Time (in seconds) after which phase number is read from database again
+     */
+    public PhaseNumberCache(final int maxSize, int ttl) {
+        this.ttl = ttl * 1000L;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets cached phase number.
+     *
+     * @param ticketNumber
+     *            Line item number
+     * @return Phase number ("" if line item was not found) or NULL if it is not cached or has expired
+     */
+    public synchronized String get(String ticketNumber) {
+        Entry entry = entries.get(ticketNumber);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(ticketNumber);
+
+            return null;
+        }
+
+        return entry.phaseNumber;
+    }
+
+    /**
+     * Adds phase number to cache.
+     *
+     * @param ticketNumber
+     *            Line item number
+     * @param phaseNumber
+     *            Phase number ("" if line item was not found)
+     */
+    public synchronized void put(String ticketNumber, String phaseNumber) {
+        entries.put(ticketNumber, new Entry(phaseNumber, System.currentTimeMillis() + ttl));
+    }
+}
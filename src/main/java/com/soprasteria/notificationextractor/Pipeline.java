@@ -0,0 +1,245 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents records processing pipeline: parse/filter, attachments retrieval, writing on disk and removal from
+ * eventout. Every stage has its own workers and bounded queue, records read from eventout wait when parse queue is full.
+ *
+ * @author sgacka
+ */
+public class Pipeline {
+
+    private final Database database;
+    private final Stage<EventOutRecord> parseStage;
+    private final Stage<EventOutRecord> attachmentStage;
+    private final Stage<EventOutRecord> writeStage;
+    private final ArrayList<Stage<EventOutRecord>> stages;
+    private ScheduledExecutorService monitor;
+    private static final Logger logger = Logger.getLogger(Pipeline.class);
+
+    /**
+     * Pipeline constructor.
+     *
+     * @param database
+     *            Database object
+     */
+    public Pipeline(final Database database) {
+        this.database = database;
+
+        writeStage = new Stage<EventOutRecord>("write", Configuration.writeThreads, Configuration.writeQueueSize, 1,
+                new Stage.Handler<EventOutRecord>() {
+                    public void handle(List<EventOutRecord> records) throws Exception {
+                        for (EventOutRecord record : records) {
+                            write(record);
+                        }
+                    }
+                });
+
+        attachmentStage = new Stage<EventOutRecord>("attachments", Configuration.attachmentThreads, Configuration.attachmentQueueSize,
+                Configuration.attachmentBatchSize, new Stage.Handler<EventOutRecord>() {
+                    public void handle(List<EventOutRecord> records) throws Exception {
+                        getAttachments(records);
+                    }
+                });
+
+        parseStage = new Stage<EventOutRecord>("parse", Configuration.parseThreads, Configuration.parseQueueSize, 1,
+                new Stage.Handler<EventOutRecord>() {
+                    public void handle(List<EventOutRecord> records) throws Exception {
+                        for (EventOutRecord record : records) {
+                            parse(record);
+                        }
+                    }
+                });
+
+        stages = new ArrayList<Stage<EventOutRecord>>();
+        stages.add(parseStage);
+        stages.add(attachmentStage);
+        stages.add(writeStage);
+    }
+
+    /**
+     * Starts workers of all stages.
+     */
+    public void start() {
+        for (final Stage<EventOutRecord> stage : stages) {
+            stage.start();
+
+            Metrics.gauge(Metrics.STAGE_QUEUE_DEPTH, new Metrics.Gauge() {
+                public long getValue() {
+                    return stage.getQueueDepth();
+                }
+            }, "stage", stage.getName());
+            Metrics.gauge(Metrics.STAGE_IN_FLIGHT, new Metrics.Gauge() {
+                public long getValue() {
+                    return stage.getInFlight();
+                }
+            }, "stage", stage.getName());
+        }
+
+        Metrics.gauge(Metrics.DELETE_PENDING, new Metrics.Gauge() {
+            public long getValue() {
+                return database.getPendingRemovals();
+            }
+        });
+        Metrics.gauge(Metrics.MEMORY_RESERVED, new Metrics.Gauge() {
+            public long getValue() {
+                return MemoryBudget.getUsed();
+            }
+        });
+
+        monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pipeline-monitor");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        monitor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (getInFlight() > 0) {
+                    logger.info(getQueueDepths());
+                }
+            }
+        }, Configuration.stageReportInterval, Configuration.stageReportInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds record read from eventout to the pipeline, waits while parse queue is full.
+     *
+     * @param record
+     *            Eventout record
+     * @throws InterruptedException
+     */
+    public void submit(EventOutRecord record) throws InterruptedException {
+        parseStage.put(record);
+    }
+
+    /**
+     * Waits until all submitted records have passed all stages.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitIdle() throws InterruptedException {
+        // records only move forward, so stages become idle one after another
+        for (Stage<EventOutRecord> stage : stages) {
+            stage.awaitIdle();
+        }
+    }
+
+    /**
+     * Stops workers of all stages.
+     */
+    public void stop() {
+        if (monitor != null) {
+            monitor.shutdownNow();
+        }
+
+        for (Stage<EventOutRecord> stage : stages) {
+            stage.stop();
+        }
+    }
+
+    /**
+     * Gets queue depths of all stages for logger.
+     *
+     * @return Formatted queue depths
+     */
+    public String getQueueDepths() {
+        StringBuilder sb = new StringBuilder("Stage queues:");
+
+        for (Stage<EventOutRecord> stage : stages) {
+            sb.append(" ").append(stage.getName()).append("=").append(stage.getQueueDepth()).append("/").append(stage.getInFlight());
+        }
+        sb.append(" delete=").append(database.getPendingRemovals());
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets number of records in all stages.
+     *
+     * @return Number of records
+     */
+    private int getInFlight() {
+        int inFlight = 0;
+
+        for (Stage<EventOutRecord> stage : stages) {
+            inFlight += stage.getInFlight();
+        }
+
+        return inFlight;
+    }
+
+    /**
+     * Parse stage - parses record and passes matching notifications to the next stage.
+     *
+     * @param record
+     *            Eventout record
+     * @throws InterruptedException
+     */
+    private void parse(EventOutRecord record) throws InterruptedException {
+        Stage<EventOutRecord> next = null;
+
+        try {
+            if (record.parseRecord()) {
+                next = record.prepareAttachmentRequest() != null ? attachmentStage : writeStage;
+            }
+        } catch (Throwable e) {
+            logger.error(EventOutBatch.getRecordNumber(record) + "Unable to parse eventout record:\r\n", e);
+        } finally {
+            // message is already extracted from evFields
+            record.close();
+        }
+
+        if (next != null) {
+            next.put(record);
+        }
+    }
+
+    /**
+     * Attachments stage - retrieves attachments for batch of records.
+     *
+     * @param records
+     *            Parsed records with prepared attachment requests
+     * @throws InterruptedException
+     */
+    private void getAttachments(List<EventOutRecord> records) throws InterruptedException {
+        try {
+            EventOutBatch.getAttachments(database, records);
+        } catch (Throwable e) {
+            // records stay in eventout and will be processed again
+            for (EventOutRecord record : records) {
+                logger.error(EventOutBatch.getRecordNumber(record) + "Unable to retrieve attachments:\r\n", e);
+            }
+
+            return;
+        }
+
+        for (EventOutRecord record : records) {
+            writeStage.put(record);
+        }
+    }
+
+    /**
+     * Write stage - saves notification on disk and schedules its removal from eventout.
+     *
+     * @param record
+     *            Parsed record with retrieved attachments
+     */
+    private void write(EventOutRecord record) {
+        try {
+            record.saveRecord();
+        } catch (Throwable e) {
+            logger.error(EventOutBatch.getRecordNumber(record) + "Unable to save notification:\r\n", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.soprasteria.notificationextractor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents pooled database connection with its own cache of prepared statements. Statements are kept open
+ * and reused for the same SQL text, least recently used statement is closed when cache is full.
+ *
+ * @author sgacka
+ */
+public class PooledConnection {
+
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private static final Logger logger = Logger.getLogger(PooledConnection.class);
+    private static final Metrics.Counter cacheHits = Metrics.counter(Metrics.STATEMENT_CACHE, "result", "hit");
+    private static final Metrics.Counter cacheMisses = Metrics.counter(Metrics.STATEMENT_CACHE, "result", "miss");
+
+    /**
+     * PooledConnection constructor.
+     *
+     * @param connection
+     *            Database connection
+     * @param cacheSize
+     *            Maximum number of cached statements
+     */
+    public PooledConnection(Connection connection, final int cacheSize) {
+        this.connection = connection;
+        // connection is used by one worker at a time, so cache is not synchronized
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > cacheSize) {
+                    close(eldest.getValue());
+
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets prepared statement for SQL text, statement prepared earlier is reused. Statement must not be closed by caller.
+     *
+     * @param sql
+     *            SQL text
+     * @return Prepared statement with cleared parameters
+     * @throws SQLException
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+
+        if (statement != null && !statement.isClosed()) {
+            cacheHits.increment();
+            statement.clearParameters();
+
+            return statement;
+        }
+
+        cacheMisses.increment();
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+
+        return statement;
+    }
+
+    /**
+     * Closes cached statement, e.g. after it failed, so the next call prepares it again.
+     *
+     * @param sql
+     *            SQL text
+     */
+    public void discardStatement(String sql) {
+        PreparedStatement statement = statements.remove(sql);
+
+        if (statement != null) {
+            close(statement);
+        }
+    }
+
+    /**
+     * Commits current transaction.
+     *
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+        connection.commit();
+    }
+
+    /**
+     * Rolls back current transaction.
+     *
+     * @throws SQLException
+     */
+    public void rollback() throws SQLException {
+        connection.rollback();
+    }
+
+    /**
+     * Checks if connection has been closed.
+     *
+     * @return TRUE if connection is closed
+     * @throws SQLException
+     */
+    public Boolean isClosed() throws SQLException {
+        return connection.isClosed();
+    }
+
+    /**
+     * Closes all cached statements and connection.
+     *
+     * @throws SQLException
+     */
+    public void close() throws SQLException {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+
+        if (!connection.isClosed()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes statement, errors are only logged.
+     *
+     * @param statement
+     *            Prepared statement
+     */
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.debug("Unable to close cached statement", e);
+        }
+    }
+}
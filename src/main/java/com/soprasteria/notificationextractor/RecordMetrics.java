@@ -0,0 +1,121 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that keeps metrics of records with the same customer tool and ticket source. Metrics are looked up once, so
+ * labels are not formatted again for every record, segment or attachment.
+ *
+ * @author sgacka
+ */
+public class RecordMetrics {
+
+    /**
+     * Maximum number of remembered ticket sources per customer tool
+     */
+    private static final int MAX_SOURCES = 1000;
+    private static final ConcurrentHashMap<String, RecordMetrics> otherInterfaces = new ConcurrentHashMap<String, RecordMetrics>();
+
+    /**
+     * Records read from evFields CLOB
+     */
+    public final Metrics.Histogram clobRead;
+    /**
+     * Records parsed
+     */
+    public final Metrics.Histogram parse;
+    /**
+     * Records ignored - because message is incomplete or, for another interface, because it is not routed
+     */
+    public final Metrics.Counter ignored;
+    /**
+     * Notifications found (NULL for another interface, like all metrics below)
+     */
+    public final Metrics.Counter notifications;
+    /**
+     * Bytes of attachment segments read
+     */
+    public final Metrics.Counter attachmentBytes;
+    /**
+     * Attachments decompressed
+     */
+    public final Metrics.Histogram inflate;
+    /**
+     * Notification files written
+     */
+    public final Metrics.Histogram fileWrite;
+    /**
+     * Records processed (ticket source is not a label of this metric)
+     */
+    public final Metrics.Histogram latency;
+
+    /**
+     * RecordMetrics constructor.
+     *
+     * @param customerTool
+     *            Customer tool name, NULL for records of another interface
+     * @param source
+     *            Ticket source
+     */
+    private RecordMetrics(String customerTool, String source) {
+        clobRead = Metrics.histogram(Metrics.CLOB_READ, Metrics.CUSTOMER_TOOL, customerTool, "source", source);
+        parse = Metrics.histogram(Metrics.PARSE, Metrics.CUSTOMER_TOOL, customerTool, "source", source);
+
+        if (customerTool == null) {
+            ignored = Metrics.counter(Metrics.RECORDS_IGNORED, "source", source, "reason", "interface");
+            notifications = null;
+            attachmentBytes = null;
+            inflate = null;
+            fileWrite = null;
+            latency = null;
+
+            return;
+        }
+
+        ignored = Metrics.counter(Metrics.RECORDS_IGNORED, Metrics.CUSTOMER_TOOL, customerTool, "source", source, "reason",
+                "incomplete");
+        notifications = Metrics.counter(Metrics.NOTIFICATIONS, Metrics.CUSTOMER_TOOL, customerTool, "source", source);
+        attachmentBytes = Metrics.counter(Metrics.ATTACHMENT_BYTES, Metrics.CUSTOMER_TOOL, customerTool, "source", source);
+        inflate = Metrics.histogram(Metrics.INFLATE, Metrics.CUSTOMER_TOOL, customerTool, "source", source);
+        fileWrite = Metrics.histogram(Metrics.FILE_WRITE, Metrics.CUSTOMER_TOOL, customerTool, "source", source);
+        latency = Metrics.histogram(Metrics.RECORD_LATENCY, Metrics.CUSTOMER_TOOL, customerTool);
+    }
+
+    /**
+     * Gets metrics of records with given ticket source, creates them if needed.
+     *
+     * @param cache
+     *            Metrics by ticket source
+     * @param customerTool
+     *            Customer tool name, NULL for records of another interface
+     * @param source
+     *            Ticket source
+     * @return Record metrics
+     */
+    static RecordMetrics get(ConcurrentHashMap<String, RecordMetrics> cache, String customerTool, String source) {
+        RecordMetrics metrics = cache.get(source);
+
+        if (metrics == null) {
+            // series stay registered, only their handles are forgotten
+            if (cache.size() >= MAX_SOURCES) {
+                cache.clear();
+            }
+
+            cache.putIfAbsent(source, new RecordMetrics(customerTool, source));
+            metrics = cache.get(source);
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Gets metrics of records for another interface, only CLOB read, parse and ignored records are counted.
+     *
+     * @param source
+     *            Ticket source
+     * @return Record metrics
+     */
+    public static RecordMetrics forOtherInterface(String source) {
+        return get(otherInterfaces, null, source);
+    }
+}
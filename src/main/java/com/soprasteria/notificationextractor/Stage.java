@@ -0,0 +1,209 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents single stage of records processing - bounded queue with its own group of worker threads. Adding
+ * item to full queue waits until workers take items from it.
+ *
+ * @param <T>
+ *            Type of processed items
+ * @author sgacka
+ */
+public class Stage<T> {
+
+    /**
+     * Interface of work done by stage workers.
+     *
+     * @param <T>
+     *            Type of processed items
+     */
+    public interface Handler<T> {
+
+        /**
+         * Processes items taken from stage queue.
+         *
+         * @param items
+         *            Items taken from queue, at least one
+         * @throws Exception
+         */
+        void handle(List<T> items) throws Exception;
+    }
+
+    private final String name;
+    private final int workers;
+    private final int batchSize;
+    private final ArrayBlockingQueue<T> queue;
+    private final Handler<T> handler;
+    private final ArrayList<Thread> threads;
+    private int inFlight;
+    private volatile Boolean isRunning;
+    private static final Logger logger = Logger.getLogger(Stage.class);
+
+    /**
+     * Stage constructor.
+     *
+     * @param name
+     *            Stage name
+     * @param workers
+     *            Number of worker threads
+     * @param queueSize
+     *            Maximum number of items waiting in queue
+     * @param batchSize
+     *            Maximum number of items handled by worker at once
+     * @param handler
+     *            Work done by workers
+     */
+    public Stage(String name, int workers, int queueSize, int batchSize, Handler<T> handler) {
+        this.name = name;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<T>(queueSize);
+        this.handler = handler;
+        this.threads = new ArrayList<Thread>(workers);
+        this.inFlight = 0;
+        this.isRunning = Boolean.FALSE;
+    }
+
+    /**
+     * Starts worker threads.
+     */
+    public void start() {
+        isRunning = Boolean.TRUE;
+
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, name + "-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Adds item to stage queue, waits while queue is full.
+     *
+     * @param item
+     *            Item to process
+     * @throws InterruptedException
+     */
+    public void put(T item) throws InterruptedException {
+        synchronized (this) {
+            inFlight++;
+        }
+
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            done(1);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until all items added to stage have been processed.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Stops worker threads. Items still in queue are not processed.
+     */
+    public void stop() {
+        isRunning = Boolean.FALSE;
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        threads.clear();
+    }
+
+    /**
+     * Gets number of items waiting in queue.
+     *
+     * @return Queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Gets number of items waiting in queue or being processed.
+     *
+     * @return Number of items
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets stage name.
+     *
+     * @return Stage name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Worker loop - takes available items (up to batch size) and handles them.
+     */
+    private void work() {
+        ArrayList<T> items = new ArrayList<T>(batchSize);
+
+        while (isRunning) {
+            try {
+                items.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            queue.drainTo(items, batchSize - 1);
+
+            try {
+                handler.handle(items);
+            } catch (Throwable e) {
+                logger.error("Stage " + name + " failed to process " + items.size() + " item(s)", e);
+            } finally {
+                done(items.size());
+                items.clear();
+            }
+        }
+    }
+
+    /**
+     * Marks items as processed.
+     *
+     * @param count
+     *            Number of items
+     */
+    private synchronized void done(int count) {
+        inFlight -= count;
+
+        if (inFlight == 0) {
+            notifyAll();
+        }
+    }
+}
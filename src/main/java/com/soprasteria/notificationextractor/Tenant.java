@@ -0,0 +1,150 @@
+package com.soprasteria.notificationextractor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Class that represents customer tool (interface) served by the extractor. Records are routed to customer tool by its
+ * name in destination path of the notification, every customer tool can have own output root, log and attachments
+ * policy.
+ *
+ * @author sgacka
+ */
+public class Tenant {
+
+    private final String name;
+    private final String outputRoot;
+    private final Boolean ignoreAttachments;
+    private final Boolean limitAttachments;
+    private final int attachmentLimit;
+    private final Logger logger;
+    private final ConcurrentHashMap<String, RecordMetrics> metrics = new ConcurrentHashMap<String, RecordMetrics>();
+
+    /**
+     * Tenant constructor.
+     *
+     * @param name
+     *            Customer tool name
+     * @param outputRoot
+     *            Directory replacing customer tool directory from destination path, NULL if path is not changed
+     * @param ignoreAttachments
+     *            TRUE if attachments are ignored
+     * @param limitAttachments
+     *            TRUE if attachments are limited
+     * @param attachmentLimit
+     *            Attachments limit value
+     */
+    public Tenant(String name, String outputRoot, Boolean ignoreAttachments, Boolean limitAttachments, int attachmentLimit) {
+        this.name = name;
+        this.outputRoot = outputRoot;
+        this.ignoreAttachments = ignoreAttachments;
+        this.limitAttachments = limitAttachments;
+        this.attachmentLimit = attachmentLimit;
+        this.logger = Logger.getLogger(Tenant.class.getName() + "." + name);
+    }
+
+    /**
+     * Finds customer tool of the notification. When names of customer tools overlap, the longest matching name wins.
+     *
+     * @param destinationPath
+     *            Destination path of the notification
+     * @return Customer tool or NULL if notification is for another interface
+     */
+    public static Tenant route(String destinationPath) {
+        // tenants are sorted from the longest name
+        for (Tenant tenant : Configuration.tenants) {
+            if (destinationPath.contains(tenant.name)) {
+                return tenant;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets destination path in output root of customer tool.
+     *
+     * @param destinationPath
+     *            Destination path of the notification
+     * @param fileName
+     *            File name of the notification
+     * @return Destination path with customer tool directory replaced by output root
+     */
+    public String getDestinationPath(String destinationPath, String fileName) {
+        if (outputRoot == null) {
+            return destinationPath;
+        }
+
+        int pos = destinationPath.lastIndexOf(name, destinationPath.length() - fileName.length());
+
+        if (pos < 0) {
+            return destinationPath;
+        }
+
+        return outputRoot + destinationPath.substring(pos + name.length());
+    }
+
+    /**
+     * Checks if attachments of notifications are ignored.
+     *
+     * @return TRUE if attachments are ignored
+     */
+    public Boolean ignoresAttachments() {
+        return ignoreAttachments;
+    }
+
+    /**
+     * Checks if no more attachments should be saved for notification.
+     *
+     * @param count
+     *            Number of attachments already found
+     * @return TRUE if attachments limit has been reached
+     */
+    public Boolean isLimitReached(int count) {
+        return limitAttachments && count >= attachmentLimit;
+    }
+
+    /**
+     * Gets description of attachments policy for logger.
+     *
+     * @return Policy description
+     */
+    public String getAttachmentsPolicy() {
+        if (ignoreAttachments) {
+            return "attachments are ingored";
+        } else if (limitAttachments) {
+            return "attachments limit: " + attachmentLimit + " file(s)";
+        }
+
+        return "attachments are processed";
+    }
+
+    /**
+     * Gets customer tool name.
+     *
+     * @return Customer tool name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets metrics of customer tool records with given ticket source.
+     *
+     * @param source
+     *            Ticket source
+     * @return Record metrics
+     */
+    public RecordMetrics getMetrics(String source) {
+        return RecordMetrics.get(metrics, name, source);
+    }
+
+    /**
+     * Gets logger of customer tool records.
+     *
+     * @return Logger
+     */
+    public Logger getLogger() {
+        return logger;
+    }
+}
@@ -0,0 +1,121 @@
+package com.soprasteria.notificationextractor;
+
+import javax.sql.rowset.serial.SerialClob;
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link EvFieldsReader} - notification part read from the end of CLOB must give the same result as parsing
+ * whole evFields, for every chunk size.
+ *
+ * @author sgacka
+ */
+public class EvFieldsReaderTest extends TestCase {
+
+    private static final String NOTIFICATION = "telalert^p1^p2^p3^p4^p5^p6^p7^INCIDENT||AA||IM12345||"
+            + "D:\\out\\CUSTOMER_TOOL\\20151012101010_IM12345.temp\nFirst line\nSecond line\n$end";
+
+    /**
+     * Notification spans chunk boundaries, earlier events and trailer are not returned.
+     *
+     * @throws Exception
+     */
+    public void testChunkBoundaries() throws Exception {
+        String text = "telalert^old^1^2^3^4^5^6^7^INCIDENT||NA||IM1||D:\\old\\x.temp\nold body\n$end\n" + NOTIFICATION
+                + "^trailer with $en";
+
+        for (int chunkSize = 1; chunkSize <= text.length() + 1; chunkSize++) {
+            assertEquals("chunk size " + chunkSize, NOTIFICATION, read(text, chunkSize));
+        }
+    }
+
+    /**
+     * Markers split between chunks in every possible place.
+     *
+     * @throws Exception
+     */
+    public void testMarkersOnChunkBoundary() throws Exception {
+        for (int prefix = 0; prefix < 16; prefix++) {
+            String text = "xxxxxxxxxxxxxxxx".substring(prefix) + NOTIFICATION + "^tail";
+
+            for (int chunkSize = 2; chunkSize <= 16; chunkSize++) {
+                assertEquals("prefix " + prefix + ", chunk size " + chunkSize, NOTIFICATION, read(text, chunkSize));
+            }
+        }
+    }
+
+    /**
+     * CLOB shorter than one chunk is read at once.
+     *
+     * @throws Exception
+     */
+    public void testShorterThanChunk() throws Exception {
+        assertEquals(NOTIFICATION, read("prefix " + NOTIFICATION + " suffix", 64 * 1024));
+    }
+
+    /**
+     * Without "telalert" whole evFields is read, parsing fails like with whole evFields.
+     *
+     * @throws Exception
+     */
+    public void testMissingTextStart() throws Exception {
+        String text = "^p1^p2^p3^p4^p5^p6^p7^INCIDENT||AA||IM12345||D:\\out\\x.temp\nBody\n$end";
+
+        for (int chunkSize = 1; chunkSize <= text.length() + 1; chunkSize++) {
+            String read = read(text, chunkSize);
+
+            assertEquals("chunk size " + chunkSize, text, read);
+
+            try {
+                EvFields.parse(read);
+                fail("Parsing should fail");
+            } catch (StringIndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Without "$end" evFields has invalid format whatever part of it is read.
+     *
+     * @throws Exception
+     */
+    public void testMissingEnd() throws Exception {
+        String text = NOTIFICATION.substring(0, NOTIFICATION.length() - 2);
+
+        for (int chunkSize = 1; chunkSize <= text.length() + 1; chunkSize++) {
+            assertNull("chunk size " + chunkSize, EvFields.parse(read(text, chunkSize)));
+        }
+    }
+
+    /**
+     * Parsing read part gives the same notification as parsing whole evFields.
+     *
+     * @throws Exception
+     */
+    public void testSameAsWholeEvFields() throws Exception {
+        String text = "telalert^x\n$end\n" + NOTIFICATION + "\n$end^second end";
+        EvFields whole = EvFields.parse(text);
+
+        for (int chunkSize = 1; chunkSize <= text.length() + 1; chunkSize++) {
+            EvFields parsed = EvFields.parse(read(text, chunkSize));
+
+            assertEquals(whole.getDestinationPath(), parsed.getDestinationPath());
+            assertEquals(whole.getTicketNumber(), parsed.getTicketNumber());
+            assertEquals(whole.getBody(), parsed.getBody());
+        }
+    }
+
+    /**
+     * Reads notification part of evFields.
+     *
+     * @param text
+     *            evFields content
+     * @param chunkSize
+     *            Number of characters read in one round trip
+     * @return Read part
+     * @throws Exception
+     */
+    private static String read(String text, int chunkSize) throws Exception {
+        return new EvFieldsReader(new SerialClob(text.toCharArray()), chunkSize).read();
+    }
+}
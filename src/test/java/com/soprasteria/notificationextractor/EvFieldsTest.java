@@ -0,0 +1,257 @@
+package com.soprasteria.notificationextractor;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.StringTokenizer;
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link EvFields} - parsed notification must be the same as with string splitting used before single pass
+ * parsing.
+ *
+ * @author sgacka
+ */
+public class EvFieldsTest extends TestCase {
+
+    private static final String PATH = "D:\\GSC_Processing\\CUSTOMER\\out\\CUSTOMER_TOOL\\20151012101010_IM12345.temp";
+
+    /**
+     * Complete notification with attachments, evFields with history of earlier events.
+     *
+     * @throws Exception
+     */
+    public void testCompleteMessage() throws Exception {
+        String text = "telalert^old^1^2^3^4^5^6^INCIDENT||NA||IM1||D:\\old\\x.temp\nold body\n$end\n"
+                + evFields("INCIDENT||AA||IM12345||" + PATH + "||END", "First line of body\nSecond line\n\nLast line\n")
+                + "^trailer";
+
+        EvFields parsed = assertSameAsBaseline(text);
+
+        assertEquals("INCIDENT", parsed.getTicketSource());
+        assertEquals(Boolean.TRUE, parsed.withAttachments());
+        assertEquals("IM12345", parsed.getTicketNumber());
+        assertEquals(PATH, parsed.getDestinationPath());
+        assertEquals("20151012101010_IM12345.temp", parsed.getFileName());
+        assertEquals("First line of body\r\nSecond line\r\n\r\nLast line\r\n", parsed.getBody());
+    }
+
+    /**
+     * Incomplete notification - ticket source contains only word characters of the error message.
+     *
+     * @throws Exception
+     */
+    public void testIncompleteMessage() throws Exception {
+        String text = evFields("This message did not provide enough arguments!||NA||IM12345||" + PATH, "Body\n");
+
+        EvFields parsed = assertSameAsBaseline(text);
+
+        assertTrue(parsed.getTicketSource().contains("Thismessagedidnotprovideenougharguments"));
+    }
+
+    /**
+     * evFields without "$end" has invalid format.
+     *
+     * @throws Exception
+     */
+    public void testMissingEnd() throws Exception {
+        String text = "telalert^1^2^3^4^5^6^7^INCIDENT||AA||IM12345||" + PATH + "\nBody\n";
+
+        assertNull(Baseline.parse(text));
+        assertNull(EvFields.parse(text));
+    }
+
+    /**
+     * evFields without "telalert" fails like string splitting did.
+     *
+     * @throws Exception
+     */
+    public void testMissingTextStart() throws Exception {
+        String text = "^1^2^3^4^5^6^7^INCIDENT||AA||IM12345||" + PATH + "\nBody\n$end";
+
+        try {
+            Baseline.parse(text);
+            fail("Baseline parsing should fail");
+        } catch (StringIndexOutOfBoundsException e) {
+            // expected
+        }
+
+        try {
+            EvFields.parse(text);
+            fail("Parsing should fail");
+        } catch (StringIndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Only exact "AA" token announces attachments.
+     *
+     * @throws Exception
+     */
+    public void testAttachmentFlag() throws Exception {
+        String[] flags = new String[] { "AA", "NA", "AAA", "A", "aa" };
+
+        for (String flag : flags) {
+            EvFields parsed = assertSameAsBaseline(evFields("INCIDENT||" + flag + "||IM12345||" + PATH, "Body\n"));
+
+            assertEquals(flag, Boolean.valueOf("AA".equals(flag)), parsed.withAttachments());
+        }
+    }
+
+    /**
+     * Empty path parts (extra backslashes) are skipped when file name is taken from the path.
+     *
+     * @throws Exception
+     */
+    public void testPathWithExtraBackslash() throws Exception {
+        String[] paths = new String[] { "D:\\out\\\\CUSTOMER_TOOL\\\\20151012101010_IM12345.temp",
+                "D:\\out\\CUSTOMER_TOOL\\20151012101010_IM12345.temp\\", "\\\\server\\share\\20151012101010_IM12345.temp" };
+
+        for (String path : paths) {
+            EvFields parsed = assertSameAsBaseline(evFields("INCIDENT||AA||IM12345||" + path, "Body\n"));
+
+            assertEquals(path, "20151012101010_IM12345.temp", parsed.getFileName());
+        }
+    }
+
+    /**
+     * Every copy of the first line within message body is removed.
+     *
+     * @throws Exception
+     */
+    public void testRepeatedFirstLine() throws Exception {
+        String header = "INCIDENT||AA||IM12345||" + PATH;
+
+        assertSameAsBaseline(evFields(header, "Body\n" + header + "\nMore\n"));
+    }
+
+    /**
+     * Empty tokens of the first line are skipped and notification without line break has its first line in the body.
+     *
+     * @throws Exception
+     */
+    public void testFirstLineOnly() throws Exception {
+        assertSameAsBaseline(evFields("||INCIDENT||||AA||IM12345||" + PATH + "||", ""));
+    }
+
+    /**
+     * Gets evFields with notification after "telalert" and seven other parameters.
+     *
+     * @param header
+     *            First line of the notification
+     * @param body
+     *            Message body
+     * @return evFields content
+     */
+    private static String evFields(String header, String body) {
+        return "telalert^p1^p2^p3^p4^p5^p6^p7^" + header + (body.isEmpty() ? "" : "\n" + body) + "$end";
+    }
+
+    /**
+     * Parses evFields with both implementations and compares results.
+     *
+     * @param text
+     *            evFields content
+     * @return Parsed notification
+     * @throws Exception
+     */
+    private static EvFields assertSameAsBaseline(String text) throws Exception {
+        Baseline expected = Baseline.parse(text);
+        EvFields parsed = EvFields.parse(text);
+
+        assertNotNull(expected);
+        assertNotNull(parsed);
+        assertEquals(expected.ticketSource, parsed.getTicketSource());
+        assertEquals(expected.withAttachments, parsed.withAttachments());
+        assertEquals(expected.ticketNumber, parsed.getTicketNumber());
+        assertEquals(expected.destinationPath, parsed.getDestinationPath());
+        assertEquals(expected.fileName, parsed.getFileName());
+        assertEquals(expected.message, parsed.getBody());
+
+        return parsed;
+    }
+
+    /**
+     * Parsing with string splitting, as it was done before {@link EvFields}.
+     */
+    private static class Baseline {
+
+        private String message;
+        private String ticketSource;
+        private Boolean withAttachments = Boolean.FALSE;
+        private String ticketNumber;
+        private String destinationPath;
+        private String fileName;
+
+        /**
+         * Parses evFields content.
+         *
+         * @param text
+         *            evFields content
+         * @return Parsed notification or NULL if evFields has invalid format
+         * @throws Exception
+         */
+        private static Baseline parse(String text) throws Exception {
+            Baseline result = new Baseline();
+            String temp = text;
+
+            int pos = temp.lastIndexOf("$end");
+            if (pos == -1) {
+                return null;
+            }
+
+            temp = temp.substring(0, pos);
+
+            String textStart = "telalert";
+
+            pos = temp.lastIndexOf(textStart);
+            temp = temp.substring(pos, temp.length());
+
+            String separator = String.valueOf(temp.charAt(textStart.length()));
+
+            for (int i = 0; i < 8; i++) {
+                pos = temp.indexOf(separator) + 1;
+                temp = temp.substring(pos, temp.length());
+            }
+
+            result.message = temp.replace("\n", "\r\n");
+
+            BufferedReader reader = new BufferedReader(new StringReader(temp));
+            temp = reader.readLine();
+
+            result.message = result.message.replace(temp + "\r\n", "");
+
+            StringTokenizer st1 = new StringTokenizer(temp, "||");
+
+            pos = 0;
+            while (st1.hasMoreTokens()) {
+                switch (pos) {
+                case 0:
+                    result.ticketSource = st1.nextToken().replaceAll("\\W", "");
+                    break;
+                case 1:
+                    result.withAttachments = st1.nextToken().equals("AA");
+                    break;
+                case 2:
+                    result.ticketNumber = st1.nextToken();
+                    break;
+                case 3:
+                    result.destinationPath = st1.nextToken();
+
+                    StringTokenizer st2 = new StringTokenizer(result.destinationPath, "\\");
+                    while (st2.hasMoreTokens()) {
+                        result.fileName = st2.nextToken();
+                    }
+                    break;
+                default:
+                    st1.nextToken();
+                    break;
+                }
+
+                pos++;
+            }
+
+            return result;
+        }
+    }
+}